@@ -0,0 +1,128 @@
+package com.example.chat.TCP;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Códec JSON por pedido: el árbol de Gson de antes (JsonParser.parseString, JsonObject de
+ * respuesta, gson.toJson y getBytes en cada envío) contra el de ahora (JsonRequests.read /
+ * toRequest, respuestas fijas y listas con sus bytes ya codificados). Solo el códec: sin
+ * sockets, disco ni logs. Se corre con
+ *
+ *   ./gradlew jmh
+ *
+ * que ya usa el profiler gc (ver build.gradle): gc.alloc.rate.norm es B/op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    private static final String JOIN = "{\"action\":\"JOIN_GROUP\",\"data\":{\"groupName\":\"general\",\"username\":\"ana\"}}";
+    private static final String SEND = "{\"action\":\"SEND_MESSAGE_TO_GROUP\",\"data\":{\"groupName\":\"general\",\"sender\":\"ana\",\"message\":\""
+            + "hola a todos, ".repeat(10) + "\"}}";
+    private static final String USERS = "{\"action\":\"GET_ACTIVE_USERS\"}";
+
+    private static final String JOINED = JsonRequests.status("success", "Te uniste al grupo");
+    private static final String SENT = JsonRequests.status("success", "Mensaje enviado");
+
+    @Param({"JOIN_GROUP", "SEND_MESSAGE_TO_GROUP", "GET_ACTIVE_USERS"})
+    public String action;
+
+    private final Gson gson = new Gson();
+    private final JsonRequests.Constants constants = new JsonRequests.Constants(JOINED, SENT);
+    private final JsonRequests.ListCache usersCache = new JsonRequests.ListCache("users");
+    // Snapshot de ChatState: la misma instancia mientras nadie entre ni salga
+    private final Set<String> online = Set.copyOf(names(100));
+    private String line;
+
+    @Setup
+    public void setup() {
+        line = switch (action) {
+            case "JOIN_GROUP" -> JOIN;
+            case "SEND_MESSAGE_TO_GROUP" -> SEND;
+            default -> USERS;
+        };
+    }
+
+    // Como JSONProtocolHandler antes del códec en streaming
+    @Benchmark
+    public byte[] gsonTree(Blackhole bh) {
+        JsonObject request = JsonParser.parseString(line).getAsJsonObject();
+        String action = request.get("action").getAsString();
+        JsonObject data = request.has("data") ? request.getAsJsonObject("data") : new JsonObject();
+        JsonObject response = new JsonObject();
+        switch (action) {
+            case "JOIN_GROUP" -> {
+                bh.consume(data.get("groupName").getAsString());
+                bh.consume(data.get("username").getAsString());
+                response.addProperty("status", "success");
+                response.addProperty("message", "Te uniste al grupo");
+            }
+            case "SEND_MESSAGE_TO_GROUP" -> {
+                bh.consume(data.get("groupName").getAsString());
+                bh.consume(data.get("sender").getAsString());
+                bh.consume(data.get("message").getAsString());
+                response.addProperty("status", "success");
+                response.addProperty("message", "Mensaje enviado");
+            }
+            default -> {
+                response.addProperty("status", "success");
+                JsonObject dataObj = new JsonObject();
+                dataObj.add("users", gson.toJsonTree(online));
+                response.add("data", dataObj);
+            }
+        }
+        return (gson.toJson(response) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Como JSONProtocolHandler.process + encode ahora
+    @Benchmark
+    public byte[] streaming(Blackhole bh) throws IOException {
+        String response = switch (JsonRequests.toRequest(JsonRequests.read(line), null)) {
+            case JsonRequests.JoinGroup r -> {
+                bh.consume(r.groupName());
+                bh.consume(r.username());
+                yield JOINED;
+            }
+            case JsonRequests.SendGroupMessage r -> {
+                bh.consume(r.groupName());
+                bh.consume(r.sender());
+                bh.consume(r.message());
+                yield SENT;
+            }
+            default -> usersCache.encode(online);
+        };
+        byte[] ready = constants.encoded(response, false);
+        if (ready == null) ready = usersCache.encoded(response, false);
+        return ready != null ? ready : JsonRequests.line(response);
+    }
+
+    private static Set<String> names(int n) {
+        Set<String> names = new LinkedHashSet<>();
+        for (int i = 0; i < n; i++) names.add("usuario" + i);
+        return names;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.chat.TCP;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.example.chat.data.AudioStore;
+
+/**
+ * Protocolo TCP binario: el cliente lo elige mandando MAGIC como primer byte
+ * (una conexión JSON empieza con '{'). Después todo va en frames
+ *
+ *   [tipo:1][largo:4, big-endian][payload:largo]
+ *
+ *   TEXT   payload = JSON en UTF-8 (pedidos y respuestas)
+ *   BINARY payload = [largoHeader:4][header JSON][bytes crudos]; el header es un
+ *          SEND_AUDIO_* sin "audioData", los bytes son el audio tal cual
+ *
+ * Los dos tipos se pueden mezclar en la misma conexión. El audio va del socket a un
+ * temporal de AudioStore de a bloques, como el cuerpo crudo del protocolo de líneas
+ * (RawBody): sin Base64, sin buscar saltos de línea y sin un arreglo del tamaño del
+ * audio por frame.
+ */
+final class BinaryFraming {
+
+    static final byte MAGIC = (byte) 0xCB;
+    static final byte TEXT = 1;
+    static final byte BINARY = 2;
+
+    static final int HEADER = 5;
+    // Lo que sigue a la cabecera de un frame BINARY: el largo del header JSON
+    static final int BINARY_HEADER = HEADER + 4;
+    static final int MAX_FRAME = 64 * 1024 * 1024;
+    private static final int MAX_SCRATCH = 1024 * 1024;
+
+    /**
+     * Pedido ya separado. file: audio de un frame BINARY o cuerpo crudo del protocolo de
+     * líneas (ver RawBody), ya volcado a disco. Casi siempre es null.
+     */
+    record Frame(String json, AudioStore.Incoming file) {}
+
+    private BinaryFraming() {}
+
+    /**
+     * Lee frames de un stream bloqueante. El buffer de los JSON y el de pasar audios a
+     * disco son de la conexión y se reutilizan entre frames.
+     */
+    static final class Reader {
+        private final DataInputStream in;
+        private byte[] scratch = new byte[8 * 1024];
+        private byte[] transfer;
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        /** Siguiente frame, o null si el cliente cerró. */
+        Frame next() throws IOException {
+            int type = in.read();
+            if (type < 0) return null;
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FRAME) throw new IOException("Frame de " + length + " bytes");
+
+            if (type == TEXT) {
+                return new Frame(readJson(length), null);
+            }
+            if (type == BINARY) {
+                int headerLength = in.readInt();
+                checkBinaryHeader(length, headerLength);
+                String json = readJson(headerLength);
+                if (transfer == null) transfer = new byte[64 * 1024];
+                AudioStore.Incoming file = AudioStore.receive();
+                try {
+                    file.transferFrom(in, length - 4 - headerLength, transfer);
+                } catch (IOException e) {
+                    file.close();
+                    throw e;
+                }
+                return new Frame(json, file);
+            }
+            throw new IOException("Tipo de frame desconocido: " + type);
+        }
+
+        private String readJson(int length) throws IOException {
+            byte[] buf = scratch;
+            if (buf.length < length) {
+                buf = new byte[length];
+                // Un JSON gigante (audio en Base64) no queda pegado a la conexión
+                if (length <= MAX_SCRATCH) scratch = buf;
+            }
+            in.readFully(buf, 0, length);
+            return new String(buf, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    static void checkBinaryHeader(int length, int headerLength) throws IOException {
+        if (length < 4) throw new IOException("Frame binario sin header");
+        if (headerLength < 0 || headerLength > length - 4) throw new IOException("Header de " + headerLength + " bytes");
+    }
+
+    static ByteBuffer encodeText(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + bytes.length);
+        buf.put(TEXT).putInt(bytes.length).put(bytes).flip();
+        return buf;
+    }
+}
@@ -1,13 +1,16 @@
 package com.example.chat.TCP;
 
-import com.example.chat.data.Group;
+import com.example.chat.data.AudioStore;
 import com.example.chat.data.HistorialManager;
 import com.example.chat.data.User;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Set; // Importar Set
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 // Importar Gson
 import com.google.gson.Gson;
@@ -22,41 +25,70 @@ import com.google.gson.JsonSyntaxException;
 public class ClientHandler implements Runnable {
 
     private final Socket clientSocket;
-    private BufferedReader in;
-    private PrintWriter out;
+    // Bytes y no BufferedReader: entre líneas puede venir audio crudo (ver RawBody)
+    private RawBody.LineInput in;
+    // Todo lo que sale por el socket de consola pasa por acá (ver Outbox): un broadcast
+    // desde otro hilo no se traba en este socket ni se mezcla con una respuesta a medias
+    private volatile Outbox outbox;
+    private final Executor writers;
     private DataInputStream dataIn;
-    private DataOutputStream dataOut;
 
     private final Map<String, ClientHandler> connectedUsers;
-    private final Map<String, Group> groups;
     private final HistorialManager historial;
 
     private String username;
     private User user;
+    // Audio crudo de la línea que se está procesando (SEND_AUDIO_* con audioLength)
+    private AudioStore.Incoming pendingAudio;
+    // Conexión JSON suscrita (SUBSCRIBE): sendMessage encola ahí en vez de usar out
+    private final Consumer<String> push;
 
     private final Gson gson = new Gson(); // Instancia de Gson
 
     public ClientHandler(Socket socket,
                          Map<String, ClientHandler> connectedUsers,
-                         Map<String, Group> groups,
                          HistorialManager historial) {
+        this(socket, connectedUsers, historial, null, null);
+    }
+
+    public ClientHandler(Socket socket,
+                         Map<String, ClientHandler> connectedUsers,
+                         HistorialManager historial,
+                         Consumer<String> push) {
+        this(socket, connectedUsers, historial, push, null);
+    }
+
+    /** Handler de consola (run): writers es el executor de escritores de Server. */
+    public ClientHandler(Socket socket,
+                         Map<String, ClientHandler> connectedUsers,
+                         HistorialManager historial,
+                         Executor writers) {
+        this(socket, connectedUsers, historial, null, writers);
+    }
+
+    private ClientHandler(Socket socket,
+                          Map<String, ClientHandler> connectedUsers,
+                          HistorialManager historial,
+                          Consumer<String> push,
+                          Executor writers) {
         this.clientSocket = socket;
         this.connectedUsers = connectedUsers;
-        this.groups = groups;
         this.historial = historial;
+        this.push = push;
+        // Sin executor (handler creado solo para run) cada tanda va en un hilo virtual propio
+        this.writers = writers != null ? writers : Thread.ofVirtual().name("cumbia-console-writer")::start;
     }
 
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            dataIn = new DataInputStream(clientSocket.getInputStream());
-            dataOut = new DataOutputStream(clientSocket.getOutputStream());
+            in = new RawBody.LineInput(clientSocket.getInputStream());
+            outbox = new Outbox(writers, clientSocket.getOutputStream(),
+                    line -> (line + "\n").getBytes(StandardCharsets.UTF_8), this::closeSilently);
+            dataIn = new DataInputStream(in);
 
             // --- Nuevo: Login basado en JSON ---
-            out.println("{\"status\":\"need_login\", \"message\":\"Envía un mensaje JSON con {\\\"action\\\":\\\"LOGIN\\\", \\\"data\\\":{\\\"username\\\":\\\"tu_nombre\\\"}}\"}");
-            out.flush();
+            reply("{\"status\":\"need_login\", \"message\":\"Envía un mensaje JSON con {\\\"action\\\":\\\"LOGIN\\\", \\\"data\\\":{\\\"username\\\":\\\"tu_nombre\\\"}}\"}");
 
             String loginLine = in.readLine();
             if (loginLine == null) {
@@ -64,47 +96,43 @@ public class ClientHandler implements Runnable {
                 return;
             }
 
+            // En los errores de login no se cierra acá: cleanup espera a que salga el aviso
             JsonObject loginRequest;
             try {
                 loginRequest = JsonParser.parseString(loginLine).getAsJsonObject();
             } catch (JsonSyntaxException e) {
-                out.println("{\"status\":\"error\", \"message\":\"Formato de login inválido, se esperaba JSON.\"}");
-                closeSilently();
+                reply("{\"status\":\"error\", \"message\":\"Formato de login inválido, se esperaba JSON.\"}");
                 return;
             }
 
             if (!"LOGIN".equals(loginRequest.get("action").getAsString())) {
-                out.println("{\"status\":\"error\", \"message\":\"Acción inicial inválida, se esperaba LOGIN.\"}");
-                closeSilently();
+                reply("{\"status\":\"error\", \"message\":\"Acción inicial inválida, se esperaba LOGIN.\"}");
                 return;
             }
 
             JsonObject loginData = loginRequest.getAsJsonObject("data");
             if (loginData == null || !loginData.has("username")) {
-                out.println("{\"status\":\"error\", \"message\":\"Datos de login incompletos, falta 'username'.\"}");
-                closeSilently();
+                reply("{\"status\":\"error\", \"message\":\"Datos de login incompletos, falta 'username'.\"}");
                 return;
             }
             username = loginData.get("username").getAsString();
 
             if (username == null || username.trim().isEmpty()) {
-                out.println("{\"status\":\"error\", \"message\":\"Nombre de usuario vacío.\"}");
-                closeSilently();
+                reply("{\"status\":\"error\", \"message\":\"Nombre de usuario vacío.\"}");
                 return;
             }
             username = username.trim();
 
-            synchronized (connectedUsers) {
-                if (connectedUsers.containsKey(username)) {
-                    out.println("{\"status\":\"error\", \"message\":\"Usuario ya conectado.\"}");
-                    closeSilently();
-                    return;
-                }
-                user = new User(username, clientSocket);
-                connectedUsers.put(username, this);
+            // El aviso de error se escribe fuera de cualquier lock
+            if (connectedUsers.putIfAbsent(username, this) != null) {
+                reply("{\"status\":\"error\", \"message\":\"Usuario ya conectado.\"}");
+                username = null;   // cleanup no debe sacar al que ya estaba conectado
+                return;
             }
+            Server.connected(username);
+            user = new User(username, clientSocket);
 
-            out.println("{\"status\":\"success\", \"message\":\"Conectado como " + username + "\"}");
+            reply("{\"status\":\"success\", \"message\":\"Conectado como " + username + "\"}");
             broadcastSystem(username + " se ha unido.");
 
 
@@ -113,45 +141,15 @@ public class ClientHandler implements Runnable {
 
             String line;
             while ((line = in.readLine()) != null) {
-                try {
-                    JsonObject json = JsonParser.parseString(line).getAsJsonObject();
-                    String action = json.get("action").getAsString();
-
-                    switch (action) {
-                        case "GET_ACTIVE_USERS":
-                            handleGetActiveUsers();
-                            break;
-                        case "GET_AVAILABLE_GROUPS":
-                            handleGetAvailableGroups();
-                            break;
-                        case "CREATE_GROUP":
-                            handleCreateGroup(json);
-                            break;
-                        case "JOIN_GROUP":
-                            handleJoinGroup(json);
-                            break;
-                        case "SEND_MESSAGE_TO_GROUP":
-                            handleSendMessageToGroup(json);
-                            break;
-                        case "SEND_PRIVATE_MESSAGE":
-                            handleSendPrivateMessage(json);
-                            break;
-                        // --- Añadir estos casos ---
-                        case "SEND_AUDIO_TO_GROUP":
-                            handleSendAudioToGroup(json);
-                            break;
-                        case "SEND_AUDIO_TO_PRIVATE":
-                            handleSendAudioToPrivate(json);
-                            break;
-
-                        default:
-                            out.println("{\"status\":\"error\", \"message\":\"Acción desconocida: " + action + "\"}");
-                    }
-                } catch (JsonSyntaxException e) {
-                    out.println("{\"status\":\"error\", \"message\":\"Mensaje no es un JSON válido: " + line + "\"}");
-                } catch (Exception e) {
-                    out.println("{\"status\":\"error\", \"message\":\"Error procesando acción: " + e.getMessage() + "\"}");
-                    e.printStackTrace();
+                // Un audio crudo anunciado en la línea (ver RawBody) se baja a disco antes
+                // de validar nada, así sus bytes nunca se leen como la próxima línea
+                long bodyLength = RawBody.announced(line);
+                try (AudioStore.Incoming body = bodyLength < 0 ? null : AudioStore.receive()) {
+                    if (body != null) body.transferFrom(in, bodyLength);
+                    pendingAudio = body;
+                    handleLine(line);
+                } finally {
+                    pendingAudio = null;
                 }
             }
 
@@ -162,16 +160,60 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    // Una línea JSON del bucle principal; si trajo audio crudo está en pendingAudio
+    private void handleLine(String line) {
+        try {
+            JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+            String action = json.get("action").getAsString();
+
+            switch (action) {
+                case "GET_ACTIVE_USERS":
+                    handleGetActiveUsers();
+                    break;
+                case "GET_AVAILABLE_GROUPS":
+                    handleGetAvailableGroups();
+                    break;
+                case "CREATE_GROUP":
+                    handleCreateGroup(json);
+                    break;
+                case "JOIN_GROUP":
+                    handleJoinGroup(json);
+                    break;
+                case "SEND_MESSAGE_TO_GROUP":
+                    handleSendMessageToGroup(json);
+                    break;
+                case "SEND_PRIVATE_MESSAGE":
+                    handleSendPrivateMessage(json);
+                    break;
+                // --- Añadir estos casos ---
+                case "SEND_AUDIO_TO_GROUP":
+                    handleSendAudioToGroup(json);
+                    break;
+                case "SEND_AUDIO_TO_PRIVATE":
+                    handleSendAudioToPrivate(json);
+                    break;
+
+                default:
+                    reply("{\"status\":\"error\", \"message\":\"Acción desconocida: " + action + "\"}");
+            }
+        } catch (JsonSyntaxException e) {
+            reply("{\"status\":\"error\", \"message\":\"Mensaje no es un JSON válido: " + line + "\"}");
+        } catch (Exception e) {
+            reply("{\"status\":\"error\", \"message\":\"Error procesando acción: " + e.getMessage() + "\"}");
+            e.printStackTrace();
+        }
+    }
+
     // --- Métodos para manejar acciones JSON ---
 
     private void handleGetActiveUsers() {
         try {
             Set<String> users = Server.getActiveUsers();
             String jsonResponse = gson.toJson(Map.of("status", "success", "data", users));
-            out.println(jsonResponse);
+            reply(jsonResponse);
         } catch (Exception e) {
             String errorResponse = gson.toJson(Map.of("status", "error", "message", e.getMessage()));
-            out.println(errorResponse);
+            reply(errorResponse);
         }
     }
 
@@ -179,10 +221,10 @@ public class ClientHandler implements Runnable {
         try {
             Set<String> groups = Server.getAvailableGroups();
             String jsonResponse = gson.toJson(Map.of("status", "success", "data", groups));
-            out.println(jsonResponse);
+            reply(jsonResponse);
         } catch (Exception e) {
             String errorResponse = gson.toJson(Map.of("status", "error", "message", e.getMessage()));
-            out.println(errorResponse);
+            reply(errorResponse);
         }
     }
 
@@ -190,28 +232,28 @@ public class ClientHandler implements Runnable {
         try {
             JsonObject data = request.getAsJsonObject("data");
             if (data == null || !data.has("groupName") || !data.has("creatorUsername")) {
-                out.println("{\"status\":\"error\", \"message\":\"Datos incompletos para CREATE_GROUP.\"}");
+                reply("{\"status\":\"error\", \"message\":\"Datos incompletos para CREATE_GROUP.\"}");
                 return;
             }
             String groupName = data.get("groupName").getAsString();
             String creatorUsername = data.get("creatorUsername").getAsString();
 
             if (!this.username.equals(creatorUsername)) {
-                out.println("{\"status\":\"error\", \"message\":\"No autorizado. El creatorUsername no coincide con el usuario logueado.\"}");
+                reply("{\"status\":\"error\", \"message\":\"No autorizado. El creatorUsername no coincide con el usuario logueado.\"}");
                 return;
             }
 
             boolean success = Server.createGroup(groupName, new User(creatorUsername));
             if (success) {
                 String jsonResponse = gson.toJson(Map.of("status", "success", "message", "Grupo creado exitosamente."));
-                out.println(jsonResponse);
+                reply(jsonResponse);
             } else {
                 String jsonResponse = gson.toJson(Map.of("status", "error", "message", "No se pudo crear el grupo (ya existe?)."));
-                out.println(jsonResponse);
+                reply(jsonResponse);
             }
         } catch (Exception e) {
             String errorResponse = gson.toJson(Map.of("status", "error", "message", e.getMessage()));
-            out.println(errorResponse);
+            reply(errorResponse);
         }
     }
 
@@ -219,28 +261,28 @@ public class ClientHandler implements Runnable {
         try {
             JsonObject data = request.getAsJsonObject("data");
             if (data == null || !data.has("groupName") || !data.has("username")) {
-                out.println("{\"status\":\"error\", \"message\":\"Datos incompletos para JOIN_GROUP.\"}");
+                reply("{\"status\":\"error\", \"message\":\"Datos incompletos para JOIN_GROUP.\"}");
                 return;
             }
             String groupName = data.get("groupName").getAsString();
             String usernameToJoin = data.get("username").getAsString();
 
             if (!this.username.equals(usernameToJoin)) {
-                out.println("{\"status\":\"error\", \"message\":\"No autorizado. El username no coincide con el usuario logueado.\"}");
+                reply("{\"status\":\"error\", \"message\":\"No autorizado. El username no coincide con el usuario logueado.\"}");
                 return;
             }
 
             boolean success = Server.joinGroup(groupName, new User(usernameToJoin));
             if (success) {
                 String jsonResponse = gson.toJson(Map.of("status", "success", "message", "Usuario se unió al grupo."));
-                out.println(jsonResponse);
+                reply(jsonResponse);
             } else {
                 String jsonResponse = gson.toJson(Map.of("status", "error", "message", "No se pudo unir al grupo (no existe?)."));
-                out.println(jsonResponse);
+                reply(jsonResponse);
             }
         } catch (Exception e) {
             String errorResponse = gson.toJson(Map.of("status", "error", "message", e.getMessage()));
-            out.println(errorResponse);
+            reply(errorResponse);
         }
     }
 
@@ -248,7 +290,7 @@ public class ClientHandler implements Runnable {
         try {
             JsonObject data = request.getAsJsonObject("data");
             if (data == null || !data.has("groupName") || !data.has("sender") || !data.has("message")) {
-                out.println("{\"status\":\"error\", \"message\":\"Datos incompletos para SEND_MESSAGE_TO_GROUP.\"}");
+                reply("{\"status\":\"error\", \"message\":\"Datos incompletos para SEND_MESSAGE_TO_GROUP.\"}");
                 return;
             }
             String groupName = data.get("groupName").getAsString();
@@ -256,7 +298,7 @@ public class ClientHandler implements Runnable {
             String message = data.get("message").getAsString();
 
             if (!this.username.equals(sender)) {
-                out.println("{\"status\":\"error\", \"message\":\"No autorizado. El sender no coincide con el usuario logueado.\"}");
+                reply("{\"status\":\"error\", \"message\":\"No autorizado. El sender no coincide con el usuario logueado.\"}");
                 return;
             }
 
@@ -264,10 +306,10 @@ public class ClientHandler implements Runnable {
             HistorialManager.registrarMensajeTexto(sender, groupName, message);
 
             String jsonResponse = gson.toJson(Map.of("status", "success", "message", "Mensaje enviado al grupo."));
-            out.println(jsonResponse);
+            reply(jsonResponse);
         } catch (Exception e) {
             String errorResponse = gson.toJson(Map.of("status", "error", "message", e.getMessage()));
-            out.println(errorResponse);
+            reply(errorResponse);
         }
     }
 
@@ -275,7 +317,7 @@ public class ClientHandler implements Runnable {
         try {
             JsonObject data = request.getAsJsonObject("data");
             if (data == null || !data.has("fromUser") || !data.has("toUser") || !data.has("message")) {
-                out.println("{\"status\":\"error\", \"message\":\"Datos incompletos para SEND_PRIVATE_MESSAGE.\"}");
+                reply("{\"status\":\"error\", \"message\":\"Datos incompletos para SEND_PRIVATE_MESSAGE.\"}");
                 return;
             }
             String fromUser = data.get("fromUser").getAsString();
@@ -283,7 +325,7 @@ public class ClientHandler implements Runnable {
             String message = data.get("message").getAsString();
 
             if (!this.username.equals(fromUser)) {
-                out.println("{\"status\":\"error\", \"message\":\"No autorizado. El fromUser no coincide con el usuario logueado.\"}");
+                reply("{\"status\":\"error\", \"message\":\"No autorizado. El fromUser no coincide con el usuario logueado.\"}");
                 return;
             }
 
@@ -292,10 +334,10 @@ public class ClientHandler implements Runnable {
             HistorialManager.registrarMensajeTexto(fromUser, chatName, message);
 
             String jsonResponse = gson.toJson(Map.of("status", "success", "message", "Mensaje privado enviado."));
-            out.println(jsonResponse);
+            reply(jsonResponse);
         } catch (Exception e) {
             String errorResponse = gson.toJson(Map.of("status", "error", "message", e.getMessage()));
-            out.println(errorResponse);
+            reply(errorResponse);
         }
     }
 
@@ -308,55 +350,48 @@ public class ClientHandler implements Runnable {
     private void handleSendAudioToGroup(JsonObject request) {
         try {
             JsonObject data = request.getAsJsonObject("data");
-            if (data == null || !data.has("groupName") || !data.has("sender") || !data.has("audioFileName") || !data.has("audioData")) {
+            if (data == null || !data.has("groupName") || !data.has("sender") || !data.has("audioFileName") || !(data.has("audioData") || pendingAudio != null)) {
                 JsonObject errorResponse = new JsonObject();
                 errorResponse.addProperty("status", "error");
-                errorResponse.addProperty("message", "Datos incompletos para SEND_AUDIO_TO_GROUP. Se requiere groupName, sender, audioFileName, y audioData.");
-                out.println(gson.toJson(errorResponse));
+                errorResponse.addProperty("message", "Datos incompletos para SEND_AUDIO_TO_GROUP. Se requiere groupName, sender, audioFileName, y audioData (o audioLength).");
+                reply(gson.toJson(errorResponse));
                 return;
             }
             String groupName = data.get("groupName").getAsString();
             String sender = data.get("sender").getAsString();
             String audioFileName = data.get("audioFileName").getAsString();
-            String audioDataBase64 = data.get("audioData").getAsString(); // Asumimos que el audio viene como Base64
 
             // Validar que el emisor sea el usuario logueado
             if (!this.username.equals(sender)) {
                 JsonObject errorResponse = new JsonObject();
                 errorResponse.addProperty("status", "error");
                 errorResponse.addProperty("message", "No autorizado. El sender no coincide con el usuario logueado.");
-                out.println(gson.toJson(errorResponse));
+                reply(gson.toJson(errorResponse));
                 return;
             }
 
-            // Decodificar Base64 a bytes
-            byte[] audioBytes;
+            // Decodificar Base64 a bytes (salvo que el audio haya venido crudo)
+            byte[] audioBytes = null;
             try {
-                audioBytes = java.util.Base64.getDecoder().decode(audioDataBase64);
+                if (pendingAudio == null) {
+                    audioBytes = java.util.Base64.getDecoder().decode(data.get("audioData").getAsString());
+                }
             } catch (IllegalArgumentException e) {
                 JsonObject errorResponse = new JsonObject();
                 errorResponse.addProperty("status", "error");
                 errorResponse.addProperty("message", "Error decodificando audio (Base64 inválido).");
-                out.println(gson.toJson(errorResponse));
+                reply(gson.toJson(errorResponse));
                 return;
             }
 
-            // Crear el archivo en la ubicación donde lo espera el código original
-            File audioDir = new File("audios");
-            audioDir.mkdirs();
-            File outFile = new File(audioDir, sender + "_" + audioFileName);
-            outFile.getParentFile().mkdirs();
-
-            // Escribir los bytes decodificados al archivo
-            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                fos.write(audioBytes);
-            }
+            // Guardar en el almacén de audios (deduplicado por contenido)
+            String fileId = storeAudio(sender + "_" + audioFileName, audioBytes).fileId();
 
             // Registrar en historial (reutilizando la lógica original)
-            HistorialManager.registrarAudio(sender, groupName, outFile.getName());
+            HistorialManager.registrarAudio(sender, groupName, fileId);
 
             // Enviar mensaje de notificación al grupo (reutilizando la lógica original)
-            Server.broadcastToGroup(groupName, "[AUDIO] " + outFile.getName(), sender);
+            Server.broadcastToGroup(groupName, "[AUDIO] " + fileId, sender);
 
             // Opcional: Enviar el archivo binario a cada cliente del grupo (esto es complejo con TCP y ClientHandler actuales,
             // ya que ClientHandler no tiene acceso directo a los sockets de otros clientes).
@@ -367,69 +402,62 @@ public class ClientHandler implements Runnable {
             JsonObject response = new JsonObject();
             response.addProperty("status", "success");
             response.addProperty("message", "Audio enviado al grupo y registrado.");
-            out.println(gson.toJson(response));
+            reply(gson.toJson(response));
 
         } catch (Exception e) {
             JsonObject errorResponse = new JsonObject();
             errorResponse.addProperty("status", "error");
             errorResponse.addProperty("message", e.getMessage());
-            out.println(gson.toJson(errorResponse));
+            reply(gson.toJson(errorResponse));
         }
     }
 
     private void handleSendAudioToPrivate(JsonObject request) {
         try {
             JsonObject data = request.getAsJsonObject("data");
-            if (data == null || !data.has("toUser") || !data.has("fromUser") || !data.has("audioFileName") || !data.has("audioData")) {
+            if (data == null || !data.has("toUser") || !data.has("fromUser") || !data.has("audioFileName") || !(data.has("audioData") || pendingAudio != null)) {
                 JsonObject errorResponse = new JsonObject();
                 errorResponse.addProperty("status", "error");
-                errorResponse.addProperty("message", "Datos incompletos para SEND_AUDIO_TO_PRIVATE. Se requiere toUser, fromUser, audioFileName, y audioData.");
-                out.println(gson.toJson(errorResponse));
+                errorResponse.addProperty("message", "Datos incompletos para SEND_AUDIO_TO_PRIVATE. Se requiere toUser, fromUser, audioFileName, y audioData (o audioLength).");
+                reply(gson.toJson(errorResponse));
                 return;
             }
             String toUser = data.get("toUser").getAsString();
             String fromUser = data.get("fromUser").getAsString(); // Debe ser el usuario logueado
             String audioFileName = data.get("audioFileName").getAsString();
-            String audioDataBase64 = data.get("audioData").getAsString(); // Asumimos que el audio viene como Base64
 
             // Validar que el emisor sea el usuario logueado
             if (!this.username.equals(fromUser)) {
                 JsonObject errorResponse = new JsonObject();
                 errorResponse.addProperty("status", "error");
                 errorResponse.addProperty("message", "No autorizado. El fromUser no coincide con el usuario logueado.");
-                out.println(gson.toJson(errorResponse));
+                reply(gson.toJson(errorResponse));
                 return;
             }
 
-            // Decodificar Base64 a bytes
-            byte[] audioBytes;
+            // Decodificar Base64 a bytes (salvo que el audio haya venido crudo)
+            byte[] audioBytes = null;
             try {
-                audioBytes = java.util.Base64.getDecoder().decode(audioDataBase64);
+                if (pendingAudio == null) {
+                    audioBytes = java.util.Base64.getDecoder().decode(data.get("audioData").getAsString());
+                }
             } catch (IllegalArgumentException e) {
                 JsonObject errorResponse = new JsonObject();
                 errorResponse.addProperty("status", "error");
                 errorResponse.addProperty("message", "Error decodificando audio (Base64 inválido).");
-                out.println(gson.toJson(errorResponse));
+                reply(gson.toJson(errorResponse));
                 return;
             }
 
-            // Crear el archivo en la ubicación donde lo espera el código original
-            File audioDir = new File("audios");
-            audioDir.mkdirs();
-            File outFile = new File(audioDir, fromUser + "_" + audioFileName);
-            outFile.getParentFile().mkdirs();
-
-            // Escribir los bytes decodificados al archivo
-            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                fos.write(audioBytes);
-            }
+            // Guardar en el almacén de audios (deduplicado por contenido)
+            String fileId = storeAudio(fromUser + "_" + audioFileName, audioBytes).fileId();
 
             // Registrar en historial (reutilizando la lógica original)
             String chatName = "Privado_" + fromUser + "_" + toUser;
-            HistorialManager.registrarAudio(fromUser, chatName, outFile.getName());
+            HistorialManager.registrarAudio(fromUser, chatName, fileId);
 
             // Enviar mensaje de notificación al usuario receptor (reutilizando la lógica original)
-            Server.sendPrivateMessage(fromUser, toUser, "[AUDIO] " + outFile.getName());
+            Server.sendPrivateMessage(fromUser, toUser, "[AUDIO] " + fileId);
 
             // Opcional: Enviar el archivo binario al cliente receptor (ver comentario en handleSendAudioToGroup)
             // Para que el cliente receptor lo reciba, debe solicitarlo explícitamente.
@@ -437,36 +465,51 @@ public class ClientHandler implements Runnable {
             JsonObject response = new JsonObject();
             response.addProperty("status", "success");
             response.addProperty("message", "Audio enviado en mensaje privado y registrado.");
-            out.println(gson.toJson(response));
+            reply(gson.toJson(response));
 
         } catch (Exception e) {
             JsonObject errorResponse = new JsonObject();
             errorResponse.addProperty("status", "error");
             errorResponse.addProperty("message", e.getMessage());
-            out.println(gson.toJson(errorResponse));
+            reply(gson.toJson(errorResponse));
         }
     }
 
+    private AudioStore.AudioMeta storeAudio(String fileId, byte[] audioBytes) throws IOException {
+        if (pendingAudio != null) return pendingAudio.commit(fileId);
+        return AudioStore.store(fileId, audioBytes);
+    }
+
     // --- Fin de métodos para audio ---
 
 
 
+    // connectedUsers es un ConcurrentHashMap: se recorre sin copiar y sin lock, así un
+    // socket lento no frena logins
     private void broadcastSystem(String msg) {
-        synchronized (connectedUsers) {
-            for (ClientHandler ch : connectedUsers.values()) ch.sendMessage("[SYSTEM] " + msg);
-        }
+        String line = "[SYSTEM] " + msg;
+        for (ClientHandler ch : connectedUsers.values()) ch.sendMessage(line);
     }
 
     public void sendMessage(String msg) {
-        out.println(msg);
+        // Ninguno bloquea: lo escribe el escritor de esa conexión
+        if (push != null) push.accept(msg);
+        else if (outbox != null) outbox.push(msg);   // los handlers de LOGIN web no tienen stream propio
+    }
+
+    // Respuesta a un pedido de esta conexión, en orden con los broadcasts
+    private void reply(String line) {
+        outbox.reply(line);
     }
 
     private void cleanup() {
         try {
             if (username != null) {
-                connectedUsers.remove(username);
+                if (connectedUsers.remove(username, this)) Server.disconnected(username);
                 broadcastSystem(username + " se ha desconectado.");
             }
+            // Lo encolado (p. ej. el error de login) sale antes de cerrar
+            if (outbox != null) outbox.awaitFlushed();
             if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
         } catch (IOException ignored) {}
     }
@@ -1,54 +1,110 @@
 package com.example.chat.TCP;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
 import java.net.Socket;
-import java.util.Base64;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 
-import com.example.chat.data.Group;
+import com.example.chat.TCP.JsonRequests.*;
+import com.example.chat.data.AudioStore;
 import com.example.chat.data.HistorialManager;
 import com.example.chat.data.User;
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
 /**
  * Handler que procesa mensajes en formato JSON (para el proxy REST)
  * Detecta automáticamente si el cliente usa JSON o el protocolo de consola
+ *
+ * Pipelining: un pedido con "id" corre en el pool (requests) sin esperar a los
+ * anteriores y su respuesta lleva el mismo "id", así que puede llegar desordenada.
+ * Los pedidos sin "id" se contestan en orden, como siempre.
+ *
+ * Tiempo real: después de SUBSCRIBE la conexión recibe los mensajes de sus grupos
+ * como líneas {"event":"GROUP_MESSAGE",...}, mezcladas con las respuestas. En los
+ * modos bloqueantes todo sale por un Outbox; en NIO, por la cola del event loop.
  */
 public class JSONProtocolHandler implements Runnable {
     
     private final Socket clientSocket;
-    private BufferedReader in;
-    private PrintWriter out;
+    // Las líneas se leen como bytes: entre ellas puede venir audio crudo (ver RawBody)
+    private RawBody.LineInput in;
+    
+    // Pedidos con "id" en curso por conexión; con más se deja de leer el socket
+    static final int MAX_IN_FLIGHT = 64;
+    private final Executor requests;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    
+    // Escritores de los Outbox (modos bloqueantes)
+    private final Executor writers;
+    private Outbox outbox;
+    // Líneas no pedidas hacia este cliente; NioServer pone la suya con pushTo
+    private volatile Consumer<String> push;
+    // Registro de SUBSCRIBE, para sacarlo al cerrar
+    private volatile String subscribedAs;
+    private volatile ClientHandler subscription;
     
     private final Map<String, ClientHandler> connectedUsers;
-    private final Map<String, Group> groups;
     private final HistorialManager historial;
     
-    private final Gson gson = new Gson();
-    private String username;
+    // Respuestas fijas: se serializan una vez al cargar la clase
+    private static final String LOGIN_OK = JsonRequests.status("success", "Login exitoso");
+    private static final String LOGOUT_OK = JsonRequests.status("success", "Logout exitoso");
+    private static final String GROUP_CREATED = JsonRequests.status("success", "Grupo creado");
+    private static final String GROUP_EXISTS = JsonRequests.status("error", "El grupo ya existe");
+    private static final String GROUP_JOINED = JsonRequests.status("success", "Te uniste al grupo");
+    private static final String GROUP_MISSING = JsonRequests.status("error", "El grupo no existe");
+    private static final String MESSAGE_SENT = JsonRequests.status("success", "Mensaje enviado");
+    private static final String PRIVATE_SENT = JsonRequests.status("success", "Mensaje privado enviado");
+    private static final String AUDIO_SENT = JsonRequests.status("success", "Audio enviado");
+    private static final String PRIVATE_AUDIO_SENT = JsonRequests.status("success", "Audio privado enviado");
+    private static final String SUBSCRIBED = JsonRequests.status("success", "Suscrito a mensajes en tiempo real");
+    private static final String RATE_LIMITED = JsonRequests.status("error", "Demasiados mensajes, intenta de nuevo en un momento");
+    // Sus bytes para el socket también, una vez por modo (ver encode)
+    private static final JsonRequests.Constants CONSTANTS = new JsonRequests.Constants(
+            LOGIN_OK, LOGOUT_OK, GROUP_CREATED, GROUP_EXISTS, GROUP_JOINED, GROUP_MISSING, MESSAGE_SENT,
+            PRIVATE_SENT, AUDIO_SENT, PRIVATE_AUDIO_SENT, SUBSCRIBED, RATE_LIMITED);
+    // Listas: se vuelven a serializar solo cuando ChatState publica otro snapshot
+    private static final JsonRequests.ListCache USERS = new JsonRequests.ListCache("users");
+    private static final JsonRequests.ListCache GROUPS = new JsonRequests.ListCache("groups");
+    
+    private volatile String username;
 
     public JSONProtocolHandler(Socket socket,
                                 Map<String, ClientHandler> connectedUsers,
-                                Map<String, Group> groups,
-                                HistorialManager historial) {
+                                HistorialManager historial,
+                                Executor requests,
+                                Executor writers) {
         this.clientSocket = socket;
+        this.requests = requests;
+        this.writers = writers;
         this.connectedUsers = connectedUsers;
-        this.groups = groups;
         this.historial = historial;
     }
     
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
+            InputStream raw = new BufferedInputStream(clientSocket.getInputStream());
+            raw.mark(1);
+            int first = raw.read();
+            if (first < 0) {
+                closeSilently();
+                return;
+            }
+            if ((byte) first == BinaryFraming.MAGIC) {
+                handleBinaryProtocol(raw);
+                return;
+            }
+            raw.reset();
+            
+            in = new RawBody.LineInput(raw);
+            outbox = new Outbox(writers, clientSocket.getOutputStream(),
+                    line -> encode(line, false), this::closeSilently);
+            push = outbox::push;
             
             String firstLine = in.readLine();
             if (firstLine == null) {
@@ -67,6 +123,10 @@ public class JSONProtocolHandler implements Runnable {
         } catch (IOException ex) {
             System.err.println("[JSON] Error: " + ex.getMessage());
         } finally {
+            // Las respuestas pendientes salen antes de cerrar (el cliente pudo cerrar solo su lado)
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+            disconnected();
+            if (outbox != null) outbox.awaitFlushed();
             cleanup();
         }
     }
@@ -84,229 +144,264 @@ public class JSONProtocolHandler implements Runnable {
         String line;
         while ((line = in.readLine()) != null) {
             processJSONMessage(line);
+            outbox.awaitRoom();
+        }
+    }
+    
+    /**
+     * Protocolo binario (ver BinaryFraming): mismos pedidos JSON, en frames con largo
+     */
+    private void handleBinaryProtocol(InputStream raw) throws IOException {
+        System.out.println("[JSON] Cliente binario detectado");
+        BinaryFraming.Reader frames = new BinaryFraming.Reader(new DataInputStream(raw));
+        outbox = new Outbox(writers, clientSocket.getOutputStream(),
+                json -> encode(json, true), this::closeSilently);
+        push = outbox::push;
+        
+        BinaryFraming.Frame frame;
+        while ((frame = frames.next()) != null) {
+            dispatch(frame.json(), frame.file(), outbox::reply);
+            outbox.awaitRoom();
         }
     }
     
     /**
      * Procesa un mensaje JSON individual
      */
-    private void processJSONMessage(String jsonString) {
+    private void processJSONMessage(String jsonString) throws IOException {
+        long bodyLength;
         try {
-            JsonObject request = JsonParser.parseString(jsonString).getAsJsonObject();
-            String action = request.get("action").getAsString();
-            JsonObject data = request.has("data") ? request.getAsJsonObject("data") : new JsonObject();
-            
-            System.out.println("[JSON] Action: " + action);
-            
-            JsonObject response = new JsonObject();
+            bodyLength = RawBody.announced(jsonString);
+        } catch (IOException e) {
+            // Sin un largo válido no se sabe dónde termina el audio: se corta la conexión
+            reply(JsonRequests.status("error", "Error interno: " + e.getMessage()));
+            throw e;
+        }
+        if (bodyLength < 0) {
+            dispatch(jsonString, null, this::reply);
+            return;
+        }
+        
+        // El cuerpo va del socket al archivo de a bloques; process lo guarda o lo descarta
+        AudioStore.Incoming body = AudioStore.receive();
+        try {
+            body.transferFrom(in, bodyLength);
+        } catch (IOException e) {
+            body.close();
+            throw e;
+        }
+        dispatch(jsonString, body, this::reply);
+    }
+    
+    private void reply(String response) {
+        outbox.reply(response);
+    }
+    
+    /** Canal para mensajes no pedidos (NioServer); en los modos bloqueantes es el Outbox. */
+    void pushTo(Consumer<String> push) {
+        this.push = push;
+    }
+    
+    /** La conexión se cerró: su suscripción deja de recibir. */
+    void disconnected() {
+        ClientHandler live = subscription;
+        if (live == null) return;
+        // Queda registrado como en un LOGIN web, sin canal
+        connectedUsers.replace(subscribedAs, live, new ClientHandler(clientSocket, connectedUsers, historial));
+        subscription = null;
+    }
+    
+    /**
+     * Sin "id" contesta en este hilo; con "id" lo manda al pool. Los cuerpos de audio
+     * ya están leídos, así que el hilo lector sigue con la próxima línea.
+     */
+    private void dispatch(String jsonString, AudioStore.Incoming audioFile, Consumer<String> reply) {
+        JsonRequests.Fields fields;
+        try {
+            fields = JsonRequests.read(jsonString);
+        } catch (Exception e) {
+            closeQuietly(audioFile);
+            reply.accept(invalid(e));
+            return;
+        }
+        if (fields.id() == null) {
+            reply.accept(process(fields, audioFile));
+            return;
+        }
+        inFlight.acquireUninterruptibly();
+        requests.execute(() -> {
+            try {
+                reply.accept(process(fields, audioFile));
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+    
+    /**
+     * Bytes de una respuesta o evento para el socket (línea o frame TEXT). Las respuestas
+     * fijas y la última lista de usuarios o grupos salen ya codificadas, sin copiar nada.
+     */
+    static byte[] encode(String response, boolean binary) {
+        byte[] ready = CONSTANTS.encoded(response, binary);
+        if (ready == null) ready = USERS.encoded(response, binary);
+        if (ready == null) ready = GROUPS.encoded(response, binary);
+        if (ready != null) return ready;
+        return binary ? JsonRequests.frame(response) : JsonRequests.line(response);
+    }
+
+    /** Respuesta para una línea que no se pudo leer como pedido (no hay "id" que devolver). */
+    static String invalid(Exception e) {
+        System.err.println("[JSON] Error procesando mensaje: " + e.getMessage());
+        return JsonRequests.status("error", "Error interno: " + e.getMessage());
+    }
+    
+    /**
+     * Ejecuta la acción y devuelve la respuesta JSON (sin salto de línea), con el "id"
+     * del pedido si lo tenía. No escribe en el socket, así NioServer la puede llamar
+     * desde su pool de trabajo. audioFile (frame BINARY o cuerpo anunciado con
+     * audioLength) reemplaza al campo "audioData" en Base64. audioFile se cierra
+     * siempre: si el pedido no lo guardó, el temporal se borra.
+     */
+    String process(JsonRequests.Fields fields, AudioStore.Incoming audioFile) {
+        try {
+            System.out.println("[JSON] Action: " + fields.action());
             
-            switch (action) {
-                case "LOGIN" -> {
-                    username = data.get("username").getAsString();
-                    
-                    synchronized (connectedUsers) {
-                        // En modo web, permitir "re-login" (conexiones efímeras)
-                        if (!connectedUsers.containsKey(username)) {
-                            User user = new User(username, clientSocket);
-                            ClientHandler dummyHandler = new ClientHandler(clientSocket, connectedUsers, groups, historial);
-                            connectedUsers.put(username, dummyHandler);
-                            System.out.println("[JSON] Usuario conectado: " + username);
-                        }
-                        
-                        response.addProperty("status", "success");
-                        response.addProperty("message", "Login exitoso");
-                    }
-                }
-                
-                case "LOGOUT" -> {
-                    String user = data.get("username").getAsString();
-                    synchronized (connectedUsers) {
-                        connectedUsers.remove(user);
-                        System.out.println("[JSON] Usuario desconectado: " + user);
-                    }
-                    response.addProperty("status", "success");
-                    response.addProperty("message", "Logout exitoso");
-                }
-                
-                case "GET_ACTIVE_USERS" -> {
+            String response = switch (JsonRequests.toRequest(fields, audioFile)) {
+                case Login r -> login(r);
+                case Logout r -> logout(r);
+                case Subscribe r -> subscribe(r);
+                case GetActiveUsers r -> {
                     System.out.println("[JSON] GET_ACTIVE_USERS");
-                    response.addProperty("status", "success");
-                    JsonObject dataObj = new JsonObject();
-                    dataObj.add("users", gson.toJsonTree(Server.getActiveUsers()));
-                    response.add("data", dataObj);
+                    yield USERS.encode(Server.getActiveUsers());
                 }
-                
-                case "GET_AVAILABLE_GROUPS" -> {
+                case GetAvailableGroups r -> {
                     System.out.println("[JSON] GET_AVAILABLE_GROUPS");
-                    response.addProperty("status", "success");
-                    JsonObject dataObj = new JsonObject();
-                    dataObj.add("groups", gson.toJsonTree(Server.getAvailableGroups()));
-                    response.add("data", dataObj);
-                }
-                
-                case "CREATE_GROUP" -> {
-                    String groupName = data.get("groupName").getAsString();
-                    String creator = data.get("creatorUsername").getAsString();
-                    
-                    boolean created = Server.createGroup(groupName, new User(creator));
-                    if (created) {
-                        response.addProperty("status", "success");
-                        response.addProperty("message", "Grupo creado");
-                    } else {
-                        response.addProperty("status", "error");
-                        response.addProperty("message", "El grupo ya existe");
-                    }
-                }
-                
-                case "JOIN_GROUP" -> {
-                    String groupName = data.get("groupName").getAsString();
-                    String user = data.get("username").getAsString();
-                    
-                    boolean joined = Server.joinGroup(groupName, new User(user));
-                    if (joined) {
-                        response.addProperty("status", "success");
-                        response.addProperty("message", "Te uniste al grupo");
-                    } else {
-                        response.addProperty("status", "error");
-                        response.addProperty("message", "El grupo no existe");
-                    }
-                }
-                
-                case "SEND_MESSAGE_TO_GROUP" -> {
-                    String groupName = data.get("groupName").getAsString();
-                    String sender = data.get("sender").getAsString();
-                    String message = data.get("message").getAsString();
-                    
-                    System.out.println("[JSON] Mensaje a grupo '" + groupName + "' de " + sender);
-                    
-                    // Guardar en historial
-                    HistorialManager.registrarMensajeTexto(sender, groupName, message);
-                    
-                    // Broadcast (solo para logging, no envía en tiempo real)
-                    Server.broadcastToGroup(groupName, message, sender);
-                    
-                    response.addProperty("status", "success");
-                    response.addProperty("message", "Mensaje enviado");
+                    yield GROUPS.encode(Server.getAvailableGroups());
                 }
-                
-                case "SEND_PRIVATE_MESSAGE" -> {
-                    String fromUser = data.get("fromUser").getAsString();
-                    String toUser = data.get("toUser").getAsString();
-                    String message = data.get("message").getAsString();
-                    
-                    System.out.println("[JSON] Mensaje privado: " + fromUser + " -> " + toUser);
-                    
-                    // Solo guardar en historial (no enviar en tiempo real por ahora)
-                    String chatName = "Privado_" + fromUser + "_" + toUser;
-                    HistorialManager.registrarMensajeTexto(fromUser, chatName, message);
-                    
-                    response.addProperty("status", "success");
-                    response.addProperty("message", "Mensaje privado enviado");
+                case CreateGroup r -> Server.createGroup(r.groupName(), new User(r.creator()))
+                        ? GROUP_CREATED : GROUP_EXISTS;
+                case JoinGroup r -> Server.joinGroup(r.groupName(), new User(r.username()))
+                        ? GROUP_JOINED : GROUP_MISSING;
+                case SendGroupMessage r -> sendGroupMessage(r);
+                case SendPrivateMessage r -> sendPrivateMessage(r);
+                case SendGroupAudio r -> sendGroupAudio(r);
+                case SendPrivateAudio r -> sendPrivateAudio(r);
+                case GetPrivateHistory r -> privateHistory(r);
+                case GetGroupHistory r -> {
+                    System.out.println("[JSON] GET_GROUP_HISTORY: " + r.groupName());
+                    yield JsonRequests.successText("history", HistorialManager.leerHistorialCompleto(r.groupName()));
                 }
-                
-                case "SEND_AUDIO_TO_GROUP" -> {
-                    String groupName = data.get("groupName").getAsString();
-                    String sender = data.get("sender").getAsString();
-                    String audioFileName = data.get("audioFileName").getAsString();
-                    String audioDataBase64 = data.get("audioData").getAsString();
-                    
-                    // Decodificar Base64 y guardar
-                    byte[] audioBytes = Base64.getDecoder().decode(audioDataBase64);
-                    File audioFile = new File("audios/" + sender + "_" + audioFileName);
-                    audioFile.getParentFile().mkdirs();
-                    
-                    try (FileOutputStream fos = new FileOutputStream(audioFile)) {
-                        fos.write(audioBytes);
-                    }
-                    
-                    HistorialManager.registrarAudio(sender, groupName, audioFile.getName());
-                    Server.broadcastToGroup(groupName, "[AUDIO]" + audioFile.getName(), sender);
-                    
-                    response.addProperty("status", "success");
-                    response.addProperty("message", "Audio enviado");
-                }
-                
-                case "SEND_AUDIO_TO_PRIVATE" -> {
-                    String fromUser = data.get("fromUser").getAsString();
-                    String toUser = data.get("toUser").getAsString();
-                    String audioFileName = data.get("audioFileName").getAsString();
-                    String audioDataBase64 = data.get("audioData").getAsString();
-                    
-                    byte[] audioBytes = Base64.getDecoder().decode(audioDataBase64);
-                    File audioFile = new File("audios/" + fromUser + "_" + audioFileName);
-                    audioFile.getParentFile().mkdirs();
-                    
-                    try (FileOutputStream fos = new FileOutputStream(audioFile)) {
-                        fos.write(audioBytes);
-                    }
-                    
-                    String chatName = "Privado_" + fromUser + "_" + toUser;
-                    HistorialManager.registrarAudio(fromUser, chatName, audioFile.getName());
-                    
-                    response.addProperty("status", "success");
-                    response.addProperty("message", "Audio privado enviado");
-                }
-                
-                case "GET_PRIVATE_HISTORY" -> {
-                    String user1 = data.get("user1").getAsString();
-                    String user2 = data.get("user2").getAsString();
-                    
-                    System.out.println("[JSON] GET_PRIVATE_HISTORY: " + user1 + " <-> " + user2);
-                    
-                    // Intentar ambas combinaciones de nombres
-                    String chatName1 = "Privado_" + user1 + "_" + user2;
-                    String chatName2 = "Privado_" + user2 + "_" + user1;
-                    
-                    String history1 = HistorialManager.leerHistorialCompleto(chatName1);
-                    String history2 = HistorialManager.leerHistorialCompleto(chatName2);
-                    
-                    // Combinar ambos historiales
-                    String combinedHistory = "";
-                    if (!history1.contains("vacío")) combinedHistory += history1 + "\n";
-                    if (!history2.contains("vacío")) combinedHistory += history2;
-                    
-                    if (combinedHistory.trim().isEmpty()) {
-                        combinedHistory = "(Historial vacío)";
-                    }
-                    
-                    response.addProperty("status", "success");
-                    JsonObject dataObj = new JsonObject();
-                    dataObj.addProperty("history", combinedHistory);
-                    response.add("data", dataObj);
-                }
-                
-                case "GET_GROUP_HISTORY" -> {
-                    String groupName = data.get("groupName").getAsString();
-                    
-                    System.out.println("[JSON] GET_GROUP_HISTORY: " + groupName);
-                    
-                    String history = HistorialManager.leerHistorialCompleto(groupName);
-                    
-                    response.addProperty("status", "success");
-                    JsonObject dataObj = new JsonObject();
-                    dataObj.addProperty("history", history);
-                    response.add("data", dataObj);
-                }
-                
-                default -> {
-                    response.addProperty("status", "error");
-                    response.addProperty("message", "Acción no reconocida: " + action);
-                }
-            }
-            
-            // Enviar respuesta
-            out.println(gson.toJson(response));
-            out.flush();
+                case Unknown r -> JsonRequests.status("error", "Acción no reconocida: " + r.action());
+            };
+            return JsonRequests.withId(response, fields);
             
         } catch (Exception e) {
             System.err.println("[JSON] Error procesando mensaje: " + e.getMessage());
             e.printStackTrace();
-            
-            JsonObject errorResponse = new JsonObject();
-            errorResponse.addProperty("status", "error");
-            errorResponse.addProperty("message", "Error interno: " + e.getMessage());
-            out.println(gson.toJson(errorResponse));
+            return JsonRequests.withId(JsonRequests.status("error", "Error interno: " + e.getMessage()), fields);
+        } finally {
+            closeQuietly(audioFile);
+        }
+    }
+    
+    static void closeQuietly(AudioStore.Incoming audioFile) {
+        if (audioFile == null) return;
+        try {
+            audioFile.close();
+        } catch (IOException e) {
+            System.err.println("[JSON] Error borrando audio temporal: " + e.getMessage());
+        }
+    }
+    
+    private String login(Login r) {
+        username = r.username();
+        
+        // En modo web, permitir "re-login" (conexiones efímeras).
+        // putIfAbsent es atómico en el ConcurrentHashMap
+        ClientHandler dummyHandler = new ClientHandler(clientSocket, connectedUsers, historial);
+        if (connectedUsers.putIfAbsent(username, dummyHandler) == null) {
+            Server.connected(username);
+            System.out.println("[JSON] Usuario conectado: " + username);
+        }
+        return LOGIN_OK;
+    }
+    
+    private String subscribe(Subscribe r) {
+        ClientHandler live = new ClientHandler(clientSocket, connectedUsers, historial, push);
+        // La última conexión suscrita gana: un usuario tiene un solo canal en vivo
+        if (connectedUsers.put(r.username(), live) == null) Server.connected(r.username());
+        subscribedAs = r.username();
+        subscription = live;
+        System.out.println("[JSON] " + r.username() + " suscrito a mensajes en tiempo real");
+        return SUBSCRIBED;
+    }
+    
+    private String logout(Logout r) {
+        if (connectedUsers.remove(r.username()) != null) Server.disconnected(r.username());
+        System.out.println("[JSON] Usuario desconectado: " + r.username());
+        return LOGOUT_OK;
+    }
+    
+    private String sendGroupMessage(SendGroupMessage r) {
+        if (!Server.textLimit().tryAcquire(r.sender())) return RATE_LIMITED;
+        System.out.println("[JSON] Mensaje a grupo '" + r.groupName() + "' de " + r.sender());
+        
+        // Guardar en historial
+        HistorialManager.registrarMensajeTexto(r.sender(), r.groupName(), r.message());
+        
+        // Tiempo real para los miembros suscritos
+        Server.broadcastToGroup(r.groupName(), r.message(), r.sender());
+        return MESSAGE_SENT;
+    }
+    
+    private String sendPrivateMessage(SendPrivateMessage r) {
+        if (!Server.textLimit().tryAcquire(r.fromUser())) return RATE_LIMITED;
+        System.out.println("[JSON] Mensaje privado: " + r.fromUser() + " -> " + r.toUser());
+        
+        // Solo guardar en historial (no enviar en tiempo real por ahora)
+        String chatName = "Privado_" + r.fromUser() + "_" + r.toUser();
+        HistorialManager.registrarMensajeTexto(r.fromUser(), chatName, r.message());
+        return PRIVATE_SENT;
+    }
+    
+    private String sendGroupAudio(SendGroupAudio r) throws IOException {
+        // Antes de decodificar: un rechazo no debe pagar el Base64
+        if (!Server.audioLimit().tryAcquire(r.sender())) return RATE_LIMITED;
+        
+        // Decodificar Base64 (o tomar los bytes crudos) y guardar
+        String fileId = r.audio().store(r.sender() + "_" + r.audioFileName()).fileId();
+        
+        HistorialManager.registrarAudio(r.sender(), r.groupName(), fileId);
+        Server.broadcastToGroup(r.groupName(), "[AUDIO]" + fileId, r.sender());
+        return AUDIO_SENT;
+    }
+    
+    private String sendPrivateAudio(SendPrivateAudio r) throws IOException {
+        if (!Server.audioLimit().tryAcquire(r.fromUser())) return RATE_LIMITED;
+        String fileId = r.audio().store(r.fromUser() + "_" + r.audioFileName()).fileId();
+        
+        String chatName = "Privado_" + r.fromUser() + "_" + r.toUser();
+        HistorialManager.registrarAudio(r.fromUser(), chatName, fileId);
+        return PRIVATE_AUDIO_SENT;
+    }
+    
+    private String privateHistory(GetPrivateHistory r) {
+        System.out.println("[JSON] GET_PRIVATE_HISTORY: " + r.user1() + " <-> " + r.user2());
+        
+        // Intentar ambas combinaciones de nombres
+        String history1 = HistorialManager.leerHistorialCompleto("Privado_" + r.user1() + "_" + r.user2());
+        String history2 = HistorialManager.leerHistorialCompleto("Privado_" + r.user2() + "_" + r.user1());
+        
+        // Combinar ambos historiales
+        String combinedHistory = "";
+        if (!history1.contains("vacío")) combinedHistory += history1 + "\n";
+        if (!history2.contains("vacío")) combinedHistory += history2;
+        
+        if (combinedHistory.trim().isEmpty()) {
+            combinedHistory = "(Historial vacío)";
         }
+        return JsonRequests.successText("history", combinedHistory);
     }
     
     /**
@@ -0,0 +1,276 @@
+package com.example.chat.TCP;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import com.example.chat.data.AudioStore;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Pedidos y respuestas del protocolo JSON sin pasar por el árbol de Gson.
+ * read recorre la línea con un JsonReader y junta "action" y los campos de "data";
+ * la tabla DECODERS (armada una vez) convierte eso en el record de la acción.
+ * Las respuestas se escriben directo con JsonWriter; las que se repiten (Constants,
+ * ListCache) guardan además sus bytes ya listos para el socket.
+ */
+final class JsonRequests {
+
+    sealed interface Request {}
+
+    record Login(String username) implements Request {}
+    record Logout(String username) implements Request {}
+    record Subscribe(String username) implements Request {}
+    record GetActiveUsers() implements Request {}
+    record GetAvailableGroups() implements Request {}
+    record CreateGroup(String groupName, String creator) implements Request {}
+    record JoinGroup(String groupName, String username) implements Request {}
+    record SendGroupMessage(String groupName, String sender, String message) implements Request {}
+    record SendPrivateMessage(String fromUser, String toUser, String message) implements Request {}
+    record SendGroupAudio(String groupName, String sender, String audioFileName, AudioPayload audio) implements Request {}
+    record SendPrivateAudio(String fromUser, String toUser, String audioFileName, AudioPayload audio) implements Request {}
+    record GetPrivateHistory(String user1, String user2) implements Request {}
+    record GetGroupHistory(String groupName) implements Request {}
+    record Unknown(String action) implements Request {}
+
+    /**
+     * Audio en Base64 dentro del JSON o ya en un archivo temporal (frame BINARY o cuerpo
+     * anunciado con audioLength). Recién store lo decodifica y lo guarda, así un pedido
+     * rechazado no paga el Base64.
+     */
+    record AudioPayload(String base64, AudioStore.Incoming file) {
+        AudioStore.AudioMeta store(String fileId) throws IOException {
+            if (file != null) return file.commit(fileId);
+            if (base64 == null) throw new IllegalArgumentException("Falta el campo 'audioData'");
+            return AudioStore.store(fileId, Base64.getDecoder().decode(base64));
+        }
+    }
+
+    /** "action", "id" y los campos de "data" de una línea (todos los valores como texto). */
+    static final class Fields {
+        private String action;
+        private String id;
+        private final Map<String, String> data = new HashMap<>();
+
+        String action() { return action; }
+
+        /** "id" del pedido tal como va en la respuesta (número, o string ya entre comillas); null si no vino. */
+        String id() { return id; }
+
+        String get(String name) {
+            String value = data.get(name);
+            if (value == null) throw new IllegalArgumentException("Falta el campo '" + name + "'");
+            return value;
+        }
+
+        String optional(String name) { return data.get(name); }
+    }
+
+    private static final Map<String, BiFunction<Fields, AudioPayload, Request>> DECODERS = Map.ofEntries(
+            Map.entry("LOGIN", (f, audio) -> new Login(f.get("username"))),
+            Map.entry("LOGOUT", (f, audio) -> new Logout(f.get("username"))),
+            Map.entry("SUBSCRIBE", (f, audio) -> new Subscribe(f.get("username"))),
+            Map.entry("GET_ACTIVE_USERS", (f, audio) -> new GetActiveUsers()),
+            Map.entry("GET_AVAILABLE_GROUPS", (f, audio) -> new GetAvailableGroups()),
+            Map.entry("CREATE_GROUP", (f, audio) -> new CreateGroup(f.get("groupName"), f.get("creatorUsername"))),
+            Map.entry("JOIN_GROUP", (f, audio) -> new JoinGroup(f.get("groupName"), f.get("username"))),
+            Map.entry("SEND_MESSAGE_TO_GROUP", (f, audio) ->
+                    new SendGroupMessage(f.get("groupName"), f.get("sender"), f.get("message"))),
+            Map.entry("SEND_PRIVATE_MESSAGE", (f, audio) ->
+                    new SendPrivateMessage(f.get("fromUser"), f.get("toUser"), f.get("message"))),
+            Map.entry("SEND_AUDIO_TO_GROUP", (f, audio) ->
+                    new SendGroupAudio(f.get("groupName"), f.get("sender"), f.get("audioFileName"), audio)),
+            Map.entry("SEND_AUDIO_TO_PRIVATE", (f, audio) ->
+                    new SendPrivateAudio(f.get("fromUser"), f.get("toUser"), f.get("audioFileName"), audio)),
+            Map.entry("GET_PRIVATE_HISTORY", (f, audio) -> new GetPrivateHistory(f.get("user1"), f.get("user2"))),
+            Map.entry("GET_GROUP_HISTORY", (f, audio) -> new GetGroupHistory(f.get("groupName"))));
+
+    private JsonRequests() {}
+
+    static Fields read(String json) throws IOException {
+        Fields fields = new Fields();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true);   // igual de permisivo que JsonParser.parseString
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("action".equals(name)) {
+                    fields.action = reader.nextString();
+                } else if ("id".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                    fields.id = reader.nextString();
+                } else if ("id".equals(name) && reader.peek() == JsonToken.STRING) {
+                    fields.id = quote(reader.nextString());
+                } else if ("data".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String key = reader.nextName();
+                        JsonToken token = reader.peek();
+                        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                            fields.data.put(key, reader.nextString());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+        }
+        if (fields.action == null) throw new IllegalArgumentException("Falta el campo 'action'");
+        return fields;
+    }
+
+    /** audioFile: audio crudo que vino fuera del JSON, o null. */
+    static Request toRequest(Fields fields, AudioStore.Incoming audioFile) {
+        BiFunction<Fields, AudioPayload, Request> decoder = DECODERS.get(fields.action());
+        if (decoder == null) return new Unknown(fields.action());
+        return decoder.apply(fields, new AudioPayload(fields.optional("audioData"), audioFile));
+    }
+
+    // ---------- respuestas ----------
+
+    /** Agrega el "id" del pedido al principio de la respuesta (todas son objetos JSON). */
+    static String withId(String response, Fields fields) {
+        if (fields.id == null) return response;
+        return "{\"id\":" + fields.id + "," + response.substring(1);
+    }
+
+    /** {"event":"GROUP_MESSAGE","data":{"groupName":..,"sender":..,"message":..}}: se arma una vez por broadcast. */
+    static String groupEvent(String groupName, String sender, String message) {
+        try {
+            StringWriter sw = new StringWriter(96 + message.length());
+            JsonWriter w = new JsonWriter(sw);
+            w.beginObject().name("event").value("GROUP_MESSAGE").name("data").beginObject()
+                    .name("groupName").value(groupName)
+                    .name("sender").value(sender)
+                    .name("message").value(message)
+                    .endObject().endObject();
+            return sw.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * successList de la última lista pedida. Las listas de ChatState son snapshots:
+     * la misma instancia significa que no cambió y se devuelve el mismo String, cuyos
+     * bytes para cada modo también quedan guardados (ver encoded).
+     */
+    static final class ListCache {
+        private record Encoded(Collection<String> values, String json, byte[] line, byte[] frame) {}
+
+        private final String key;
+        private volatile Encoded last = new Encoded(null, null, null, null);
+
+        ListCache(String key) {
+            this.key = key;
+        }
+
+        String encode(Collection<String> values) {
+            Encoded cached = last;
+            if (cached.values() == values) return cached.json();
+            String json = successList(key, values);
+            last = new Encoded(values, json, line(json), frame(json));
+            return json;
+        }
+
+        /** Bytes ya codificados si response es la última lista que devolvió encode, o null. */
+        byte[] encoded(String response, boolean binary) {
+            Encoded cached = last;
+            if (cached.json() != response) return null;
+            return binary ? cached.frame() : cached.line();
+        }
+    }
+
+    /**
+     * Respuestas fijas (LOGIN_OK, RATE_LIMITED...): cada una se codifica una sola vez por
+     * modo y los escritores mandan esos bytes directo. Se reconocen por identidad, así
+     * una respuesta que no es de estas solo cuesta unas comparaciones.
+     */
+    static final class Constants {
+        private final String[] texts;
+        private final byte[][] lines;
+        private final byte[][] frames;
+
+        Constants(String... texts) {
+            this.texts = texts.clone();
+            this.lines = new byte[texts.length][];
+            this.frames = new byte[texts.length][];
+            for (int i = 0; i < texts.length; i++) {
+                lines[i] = line(texts[i]);
+                frames[i] = frame(texts[i]);
+            }
+        }
+
+        /** Bytes ya codificados de response, o null si no es una de estas. */
+        byte[] encoded(String response, boolean binary) {
+            for (int i = 0; i < texts.length; i++) {
+                if (texts[i] == response) return binary ? frames[i] : lines[i];
+            }
+            return null;
+        }
+    }
+
+    /** Respuesta en el protocolo de líneas: UTF-8 con \n final. */
+    static byte[] line(String json) {
+        return (json + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Respuesta en un frame TEXT (BinaryFraming). */
+    static byte[] frame(String json) {
+        return BinaryFraming.encodeText(json).array();
+    }
+
+    private static String quote(String value) throws IOException {
+        StringWriter sw = new StringWriter(value.length() + 2);
+        new JsonWriter(sw).value(value);
+        return sw.toString();
+    }
+
+    static String status(String status, String message) {
+        try {
+            StringWriter sw = new StringWriter(64);
+            JsonWriter w = new JsonWriter(sw);
+            w.beginObject().name("status").value(status).name("message").value(message).endObject();
+            return sw.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);   // StringWriter no falla
+        }
+    }
+
+    /** {"status":"success","data":{key: [values...]}} */
+    static String successList(String key, Collection<String> values) {
+        try {
+            StringWriter sw = new StringWriter(32 + values.size() * 16);
+            JsonWriter w = new JsonWriter(sw);
+            w.beginObject().name("status").value("success").name("data").beginObject().name(key).beginArray();
+            for (String v : values) w.value(v);
+            w.endArray().endObject().endObject();
+            return sw.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** {"status":"success","data":{key: value}} */
+    static String successText(String key, String value) {
+        try {
+            StringWriter sw = new StringWriter(48 + value.length());
+            JsonWriter w = new JsonWriter(sw);
+            w.beginObject().name("status").value("success").name("data").beginObject().name(key).value(value)
+                    .endObject().endObject();
+            return sw.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,655 @@
+package com.example.chat.TCP;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.example.chat.data.AudioStore;
+
+/**
+ * Servidor TCP no bloqueante para el protocolo JSON.
+ * N event loops (un Selector cada uno) se reparten las conexiones: leen, cortan
+ * líneas y escriben respuestas. El procesamiento (historial en disco, audio)
+ * corre en el pool de trabajo, una línea a la vez por conexión para no
+ * desordenar las respuestas; los pedidos con "id" se largan en paralelo y se
+ * contestan cuando terminan (ver JSONProtocolHandler). El loop es el único que
+ * escribe en cada socket: respuestas y mensajes de grupo le llegan como tareas.
+ * El loop no toca el disco: los bytes de un audio crudo (RawBody) se copian y van
+ * por la misma cola que los pedidos, y el pool los escribe y hashea en orden.
+ * Una conexión inactiva no tiene hilo ni buffer propio, solo su SelectionKey.
+ */
+public class NioServer {
+
+    private static final int READ_BUFFER = 64 * 1024;
+    // Una línea más larga que esto (audio Base64 incluido) cierra la conexión (también en RawBody)
+    static final int MAX_LINE = 32 * 1024 * 1024;
+    // Líneas esperando al pool (o con "id" en curso) por conexión; con más se deja de leer ese socket
+    private static final int MAX_PENDING = JSONProtocolHandler.MAX_IN_FLIGHT;
+    // Bytes sin poder escribir por conexión. Si los acumulan las respuestas se deja de
+    // leer hasta bajar a la mitad; si los acumulan mensajes de grupo, el cliente no lee y se corta
+    private static final long MAX_OUTBOUND = 8 * 1024 * 1024;
+
+    // Un broadcast manda el mismo String a muchas conexiones seguidas desde un hilo:
+    // se codifica una vez por modo (0 líneas, 1 binario) y las conexiones comparten el arreglo
+    private record Encoded(String text, byte[] bytes) {}
+    private static final ThreadLocal<Encoded[]> lastEncoded = ThreadLocal.withInitial(() -> new Encoded[2]);
+
+    // Lo que una conexión le pasa al pool, en orden de llegada: un pedido, o el anuncio
+    // y los pedazos de un audio crudo (su pedido sale cuando se escribió el último)
+    private sealed interface Intake {}
+    private record Request(BinaryFraming.Frame frame) implements Intake {}
+    private record BodyStart(String line, long length) implements Intake {}
+    private record BodyPart(byte[] bytes) implements Intake {}
+
+    private final InetSocketAddress address;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final Function<SocketChannel, JSONProtocolHandler> handlers;
+
+    public NioServer(InetSocketAddress address, int loopCount, ExecutorService workers,
+                     Function<SocketChannel, JSONProtocolHandler> handlers) throws IOException {
+        this.address = address;
+        this.workers = workers;
+        this.handlers = handlers;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    /** Acepta conexiones en el hilo actual; solo vuelve si falla el socket de escucha. */
+    public void serve() throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(address, 1024);
+            for (int i = 0; i < loops.length; i++) {
+                Thread t = new Thread(loops[i], "cumbia-nio-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    channel.close();
+                    continue;
+                }
+                loops[next].add(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Lo comparten todas las conexiones del loop: cada lectura se consume entera
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER);
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void add(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (ClosedChannelException ignored) {}
+            });
+        }
+
+        /** Corre la tarea en el hilo del loop (los demás hilos nunca tocan el canal). */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection c = (Connection) key.attachment();
+                        if (c == null || !key.isValid()) continue;
+                        try {
+                            if (key.isReadable()) c.read();
+                            if (key.isValid() && key.isWritable()) c.flush();
+                        } catch (IOException e) {
+                            c.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    System.err.println("[NIO] Error en event loop: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private final class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+
+        // Solo los toca el hilo del loop
+        private byte[] partial;          // línea a medias; null si no hay
+        private int partialLength;
+        private ArrayDeque<ByteBuffer> outbound;
+        private long outboundBytes;
+        private boolean writeBlocked;    // se dejó de leer por respuestas sin salir
+        private boolean sniffed;
+
+        // Modo binario (BinaryFraming): cabecera de 5 bytes (9 en un BINARY, con el largo
+        // del header JSON) y el JSON directo a su arreglo; el audio de un BINARY sigue el
+        // mismo camino que el cuerpo crudo del protocolo de líneas (bodyRemaining).
+        // binary lo escribe el loop y lo lee encode desde cualquier hilo (broadcasts)
+        private volatile boolean binary;
+        private byte[] frameHeader;
+        private int headerFill;
+        private byte[] payload;
+        private int payloadFill;
+        private long frameBody;
+
+        // Protocolo de líneas con audio crudo (RawBody): bytes del cuerpo que el loop
+        // todavía tiene que pasar al pool en vez de cortarlos como líneas
+        private long bodyRemaining;
+
+        // Solo los toca drain (de a un hilo): la línea que anunció el audio en curso y
+        // cuántos bytes le faltan escribir
+        private String uploadLine;
+        private long uploadRemaining;
+
+        // Guardados por this: lo que espera al pool, si hay un drain corriendo, cuántos
+        // pedidos con "id" corren por su cuenta y el archivo del audio en curso
+        private ArrayDeque<Intake> pending;
+        private boolean running;
+        private int inFlight;
+        private AudioStore.Incoming upload;
+        private volatile boolean readPaused;
+        // El cliente cerró su lado: se termina de contestar y después se cierra
+        private volatile boolean eof;
+        // Respuestas ya mandadas al loop que write todavía no tomó
+        private final AtomicInteger unsent = new AtomicInteger();
+
+        // Se crea con la primera línea JSON; drain lo usa de a un hilo por vez
+        private JSONProtocolHandler handler;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        private JSONProtocolHandler newHandler() {
+            JSONProtocolHandler h = handlers.apply(channel);
+            h.pushTo(this::push);
+            return h;
+        }
+
+        void read() throws IOException {
+            ByteBuffer buf = loop.readBuffer;
+            buf.clear();
+            int n = channel.read(buf);
+            if (n < 0) {
+                eof = true;
+                updateReadInterest();
+                closeIfDone();
+                return;
+            }
+            buf.flip();
+
+            int start = 0;
+            int limit = buf.limit();
+            if (!sniffed && limit > 0 && buf.get(0) == BinaryFraming.MAGIC) {
+                sniffed = true;
+                binary = true;
+                frameHeader = new byte[BinaryFraming.BINARY_HEADER];
+                System.out.println("[JSON] Cliente binario detectado");
+                handler = newHandler();
+                start = 1;
+            }
+            if (binary) {
+                readFrames(buf, start, limit);
+                return;
+            }
+
+            int i = start;
+            while (i < limit) {
+                if (bodyRemaining > 0) {
+                    start = i = readBody(buf, i, limit);
+                    continue;
+                }
+                if (buf.get(i) != '\n') {
+                    i++;
+                    continue;
+                }
+                String line = takeLine(buf, start, i);
+                start = ++i;
+                accept(line);
+                if (!channel.isOpen()) return;
+            }
+            if (start < limit) keep(buf, start, limit);
+        }
+
+        // Pasa al pool lo que haya del cuerpo en buf[pos, limit); devuelve dónde sigue.
+        // Se copia porque buf es del loop; la escritura y el hash los hace drain
+        private int readBody(ByteBuffer buf, int pos, int limit) {
+            int n = (int) Math.min(bodyRemaining, limit - pos);
+            byte[] part = new byte[n];
+            buf.get(pos, part);
+            bodyRemaining -= n;
+            enqueue(new BodyPart(part));
+            return pos + n;
+        }
+
+        // Une lo pendiente con buf[start, end) y lo decodifica; quita un \r final
+        private String takeLine(ByteBuffer buf, int start, int end) {
+            byte[] bytes;
+            int length;
+            if (partial == null) {
+                length = end - start;
+                bytes = new byte[length];
+                buf.get(start, bytes);
+            } else {
+                keep(buf, start, end);
+                if (partial == null) return "";   // keep cerró la conexión
+                bytes = partial;
+                length = partialLength;
+                partial = null;
+                partialLength = 0;
+            }
+            if (length > 0 && bytes[length - 1] == '\r') length--;
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private void keep(ByteBuffer buf, int start, int end) {
+            int count = end - start;
+            if (partialLength + count > MAX_LINE) {
+                System.err.println("[NIO] Línea demasiado larga, cerrando conexión");
+                close();
+                return;
+            }
+            if (partial == null) {
+                partial = new byte[Math.max(count, 256)];
+            } else if (partialLength + count > partial.length) {
+                partial = Arrays.copyOf(partial, Math.max(partialLength + count, partial.length * 2));
+            }
+            buf.get(start, partial, partialLength, count);
+            partialLength += count;
+        }
+
+        private void readFrames(ByteBuffer buf, int pos, int limit) {
+            while (pos < limit) {
+                if (bodyRemaining > 0) {
+                    pos = readBody(buf, pos, limit);
+                    continue;
+                }
+                if (payload == null) {
+                    int n = Math.min(headerLength() - headerFill, limit - pos);
+                    buf.get(pos, frameHeader, headerFill, n);
+                    headerFill += n;
+                    pos += n;
+                    // Con el primer byte se sabe si es un BINARY y la cabecera es más larga
+                    if (headerFill < headerLength()) continue;
+                    if (!startFrame()) return;
+                }
+                int n = Math.min(payload.length - payloadFill, limit - pos);
+                buf.get(pos, payload, payloadFill, n);
+                payloadFill += n;
+                pos += n;
+                if (payloadFill == payload.length) {
+                    String json = new String(payload, StandardCharsets.UTF_8);
+                    payload = null;
+                    if (frameBody < 0) {
+                        enqueue(new Request(new BinaryFraming.Frame(json, null)));
+                    } else {
+                        // El temporal lo abre drain; el audio va detrás como BodyPart
+                        bodyRemaining = frameBody;
+                        enqueue(new BodyStart(json, frameBody));
+                    }
+                }
+            }
+        }
+
+        private int headerLength() {
+            return headerFill > 0 && frameHeader[0] == BinaryFraming.BINARY ? BinaryFraming.BINARY_HEADER : BinaryFraming.HEADER;
+        }
+
+        // Cabecera completa: prepara el arreglo del JSON. false si se cerró la conexión
+        private boolean startFrame() {
+            byte type = frameHeader[0];
+            int length = ByteBuffer.wrap(frameHeader, 1, 4).getInt();
+            headerFill = 0;
+            if (length < 0 || length > BinaryFraming.MAX_FRAME) {
+                System.err.println("[NIO] Frame de " + length + " bytes, cerrando conexión");
+                close();
+                return false;
+            }
+            try {
+                if (type == BinaryFraming.TEXT) {
+                    payload = new byte[length];
+                    frameBody = -1;
+                } else if (type == BinaryFraming.BINARY) {
+                    int json = ByteBuffer.wrap(frameHeader, BinaryFraming.HEADER, 4).getInt();
+                    BinaryFraming.checkBinaryHeader(length, json);
+                    payload = new byte[json];
+                    frameBody = length - 4L - json;
+                } else {
+                    throw new IOException("Tipo de frame desconocido: " + type);
+                }
+            } catch (IOException e) {
+                System.err.println("[NIO] " + e.getMessage() + ", cerrando conexión");
+                close();
+                return false;
+            }
+            payloadFill = 0;
+            return true;
+        }
+
+        private void accept(String line) {
+            if (line.isEmpty()) return;
+            if (!sniffed) {
+                // Igual que JSONProtocolHandler.run: solo se atiende el protocolo JSON
+                sniffed = true;
+                if (!line.trim().startsWith("{")) {
+                    System.out.println("[NIO] Cliente de consola detectado, cerrando conexión");
+                    close();
+                    return;
+                }
+                System.out.println("[JSON] Cliente JSON detectado");
+                handler = newHandler();
+            }
+            long length;
+            try {
+                length = RawBody.announced(line);
+            } catch (IOException e) {
+                // Sin un largo válido no se sabe dónde termina el audio
+                System.err.println("[NIO] " + e.getMessage() + ", cerrando conexión");
+                close();
+                return;
+            }
+            if (length < 0) {
+                enqueue(new Request(new BinaryFraming.Frame(line, null)));
+                return;
+            }
+            // El temporal lo abre drain; los bytes que siguen van detrás como BodyPart
+            bodyRemaining = length;
+            enqueue(new BodyStart(line, length));
+        }
+
+        // Los pedazos de audio cuentan como pedidos: con MAX_PENDING esperando (a lo sumo
+        // MAX_PENDING * READ_BUFFER bytes) se deja de leer hasta que drain los escriba
+        private void enqueue(Intake request) {
+            boolean submit;
+            synchronized (this) {
+                if (pending == null) pending = new ArrayDeque<>();
+                pending.add(request);
+                submit = !running;
+                running = true;
+                if (pending.size() + inFlight >= MAX_PENDING && !readPaused) {
+                    readPaused = true;
+                    updateReadInterest();
+                }
+            }
+            if (submit) workers.execute(this::drain);
+        }
+
+        // En el pool de trabajo: procesa en orden hasta vaciar la cola. Un pedido con
+        // "id" no espera: sale de la cola como tarea aparte y el drain sigue
+        private void drain() {
+            while (true) {
+                Intake next;
+                boolean wake;
+                synchronized (this) {
+                    next = pending.poll();
+                    if (next == null) {
+                        running = false;
+                        break;
+                    }
+                    // Un audio largo mantiene a drain ocupado: se vuelve a leer a mitad de cola
+                    wake = readPaused && pending.size() + inFlight <= MAX_PENDING / 2;
+                }
+                if (wake) loop.execute(this::settle);
+                switch (next) {
+                    case Request r -> process(r.frame());
+                    case BodyStart b -> startBody(b);
+                    case BodyPart b -> writeBody(b.bytes());
+                }
+            }
+            if (readPaused || eof) loop.execute(this::settle);
+        }
+
+        private void process(BinaryFraming.Frame request) {
+            JsonRequests.Fields fields;
+            try {
+                fields = JsonRequests.read(request.json());
+            } catch (Exception e) {
+                closeQuietly(request.file());
+                send(JSONProtocolHandler.invalid(e));
+                return;
+            }
+            if (fields.id() == null) {
+                send(handler.process(fields, request.file()));
+                return;
+            }
+            synchronized (this) {
+                inFlight++;
+            }
+            workers.execute(() -> {
+                try {
+                    send(handler.process(fields, request.file()));
+                } finally {
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                    if (readPaused || eof) loop.execute(this::settle);
+                }
+            });
+        }
+
+        // En drain: abre el temporal del audio anunciado
+        private void startBody(BodyStart start) {
+            AudioStore.Incoming file;
+            try {
+                file = AudioStore.receive();
+            } catch (IOException e) {
+                System.err.println("[NIO] No se pudo abrir el audio temporal: " + e.getMessage());
+                loop.execute(this::close);
+                return;
+            }
+            synchronized (this) {
+                if (!key.isValid()) {
+                    closeQuietly(file);
+                    return;
+                }
+                upload = file;
+            }
+            uploadLine = start.line();
+            uploadRemaining = start.length();
+            if (uploadRemaining == 0) finishBody();
+        }
+
+        // En drain: vuelca un pedazo; con el último sale el pedido
+        private void writeBody(byte[] bytes) {
+            AudioStore.Incoming file;
+            synchronized (this) {
+                file = upload;
+            }
+            if (file == null) return;   // no se pudo abrir o la conexión ya se cerró
+            try {
+                file.write(ByteBuffer.wrap(bytes));
+            } catch (IOException e) {
+                System.err.println("[NIO] Error escribiendo audio: " + e.getMessage());
+                loop.execute(this::close);
+                return;
+            }
+            uploadRemaining -= bytes.length;
+            if (uploadRemaining == 0) finishBody();
+        }
+
+        private void finishBody() {
+            AudioStore.Incoming file;
+            synchronized (this) {
+                file = upload;
+                upload = null;
+            }
+            if (file != null) process(new BinaryFraming.Frame(uploadLine, file));
+            uploadLine = null;
+        }
+
+        // En el loop, cuando terminó un pedido
+        private void settle() {
+            resumeReading();
+            closeIfDone();
+        }
+
+        private void resumeReading() {
+            synchronized (this) {
+                if (!readPaused || eof || !key.isValid()) return;
+                if ((pending == null ? 0 : pending.size()) + inFlight >= MAX_PENDING) return;
+                readPaused = false;
+                updateReadInterest();
+            }
+        }
+
+        // En el loop: se lee si no hay motivo para frenar
+        private void updateReadInterest() {
+            if (!key.isValid()) return;
+            boolean wanted = !eof && !readPaused && !writeBlocked;
+            int ops = key.interestOps();
+            key.interestOps(wanted ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        }
+
+        // Respuesta a un pedido; desde cualquier hilo. Las fijas ya vienen codificadas
+        private void send(String response) {
+            ByteBuffer bytes = ByteBuffer.wrap(JSONProtocolHandler.encode(response, binary));
+            unsent.incrementAndGet();
+            loop.execute(() -> write(bytes, false));
+        }
+
+        // Mensaje en tiempo real (broadcast); desde cualquier hilo
+        private void push(String event) {
+            ByteBuffer bytes = encode(event);
+            loop.execute(() -> write(bytes, true));
+        }
+
+        private ByteBuffer encode(String text) {
+            Encoded[] last = lastEncoded.get();
+            int slot = binary ? 1 : 0;
+            Encoded e = last[slot];
+            if (e == null || e.text() != text) {
+                byte[] bytes = binary ? JsonRequests.frame(text) : JsonRequests.line(text);
+                e = last[slot] = new Encoded(text, bytes);
+            }
+            return ByteBuffer.wrap(e.bytes());
+        }
+
+        private void write(ByteBuffer bytes, boolean pushed) {
+            if (!pushed) unsent.decrementAndGet();
+            if (!key.isValid()) return;
+            if (outbound == null || outbound.isEmpty()) {
+                try {
+                    channel.write(bytes);
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                if (!bytes.hasRemaining()) {
+                    closeIfDone();
+                    return;
+                }
+                if (outbound == null) outbound = new ArrayDeque<>();
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else if (pushed && outboundBytes + bytes.remaining() > MAX_OUTBOUND) {
+                System.err.println("[NIO] Cliente sin leer " + outboundBytes + " bytes, cerrando conexión");
+                close();
+                return;
+            }
+            outbound.add(bytes);
+            outboundBytes += bytes.remaining();
+            if (!pushed && outboundBytes > MAX_OUTBOUND && !writeBlocked) {
+                writeBlocked = true;
+                updateReadInterest();
+            }
+        }
+
+        void flush() throws IOException {
+            while (outbound != null && !outbound.isEmpty()) {
+                ByteBuffer head = outbound.peek();
+                outboundBytes -= channel.write(head);
+                if (writeBlocked && outboundBytes <= MAX_OUTBOUND / 2) {
+                    writeBlocked = false;
+                    updateReadInterest();
+                }
+                if (head.hasRemaining()) return;
+                outbound.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            closeIfDone();
+        }
+
+        private void closeIfDone() {
+            if (!eof || !key.isValid()) return;
+            synchronized (this) {
+                if (running || inFlight > 0 || (pending != null && !pending.isEmpty())) return;
+            }
+            if (unsent.get() > 0 || (outbound != null && !outbound.isEmpty())) return;
+            close();
+        }
+
+        void close() {
+            if (handler != null && key.isValid()) handler.disconnected();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            synchronized (this) {
+                if (pending != null) {
+                    // Audios ya recibidos que nadie va a procesar
+                    for (Intake i : pending) {
+                        if (i instanceof Request r) closeQuietly(r.frame().file());
+                    }
+                    pending.clear();
+                }
+                // Audio a medio recibir: si drain justo lo escribía, le falla y lo descarta
+                closeQuietly(upload);
+                upload = null;
+            }
+            partial = null;
+            payload = null;
+            outbound = null;
+        }
+    }
+
+    private static void closeQuietly(AudioStore.Incoming file) {
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException ignored) {}
+    }
+}
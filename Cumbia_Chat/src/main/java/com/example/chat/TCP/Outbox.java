@@ -0,0 +1,137 @@
+package com.example.chat.TCP;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Cola de salida de una conexión bloqueante (modos threads y virtual).
+ * Respuestas y mensajes en tiempo real se encolan sin bloquear; un solo escritor,
+ * una tarea en el executor de escritores, los manda en orden y hace flush una vez
+ * por tanda. Quien hace broadcast nunca espera a un socket lento: si un cliente
+ * acumula más de MAX_QUEUED líneas sin leer, push corta su conexión. Las
+ * respuestas no se descartan; el lector espera en awaitRoom antes del próximo pedido.
+ * (En NioServer el escritor único es el event loop de la conexión.)
+ *
+ * Se escriben bytes a un BufferedOutputStream y no con PrintWriter/DataOutputStream:
+ * esos usan synchronized y un escritor virtual trabado en un socket lento fijaría
+ * su carrier, frenando a los demás escritores. Por lo mismo las esperas de awaitRoom
+ * y awaitFlushed son con ReentrantLock/Condition y no con wait/notifyAll.
+ */
+final class Outbox {
+
+    static final int MAX_QUEUED = 4096;
+
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Executor writers;
+    private final OutputStream out;
+    private final Function<String, byte[]> encoder;
+    private final Runnable onFailure;
+    private volatile boolean failed;
+    // El escritor avisa cada tanda terminada a quien espera lugar o que se vacíe la cola
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+
+    /** encoder: línea o frame listo para el socket; onFailure: cierra la conexión. */
+    Outbox(Executor writers, OutputStream out, Function<String, byte[]> encoder, Runnable onFailure) {
+        this.writers = writers;
+        this.out = new BufferedOutputStream(out, 16 * 1024);
+        this.encoder = encoder;
+        this.onFailure = onFailure;
+    }
+
+    /** Mensaje en tiempo real; false si la conexión ya se dio por perdida. */
+    boolean push(String line) {
+        if (failed) return false;
+        if (size.incrementAndGet() > MAX_QUEUED) {
+            size.decrementAndGet();
+            System.err.println("[TCP] Cliente sin leer " + MAX_QUEUED + " mensajes, cerrando conexión");
+            fail();
+            return false;
+        }
+        enqueue(line);
+        return true;
+    }
+
+    /** Respuesta a un pedido: no cuenta para el corte. */
+    void reply(String line) {
+        if (failed) return;
+        size.incrementAndGet();
+        enqueue(line);
+    }
+
+    private void enqueue(String line) {
+        queue.add(line);
+        if (scheduled.compareAndSet(false, true)) writers.execute(this::drain);
+    }
+
+    /** Frena al lector mientras la cola está llena: un cliente que no lee deja de mandar pedidos. */
+    void awaitRoom() {
+        lock.lock();
+        try {
+            while (!failed && size.get() >= MAX_QUEUED) {
+                drained.await(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        do {
+            try {
+                String line;
+                while ((line = queue.poll()) != null) {
+                    size.decrementAndGet();
+                    if (!failed) out.write(encoder.apply(line));
+                }
+                if (!failed) out.flush();
+            } catch (IOException e) {
+                fail();
+            }
+            lock.lock();
+            try {
+                scheduled.set(false);
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            // Una línea que llegó justo después del último poll no se queda sin escritor
+        } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+
+    /** Espera a que el escritor mande lo encolado (antes de cerrar el socket). */
+    void awaitFlushed() {
+        lock.lock();
+        try {
+            while (!failed && (scheduled.get() || !queue.isEmpty())) {
+                drained.await(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail() {
+        if (failed) return;
+        failed = true;
+        queue.clear();
+        size.set(0);
+        onFailure.run();
+    }
+}
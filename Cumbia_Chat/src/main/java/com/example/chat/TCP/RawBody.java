@@ -0,0 +1,142 @@
+package com.example.chat.TCP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Audio crudo en el protocolo de líneas. En vez de "audioData" en Base64, la línea
+ * SEND_AUDIO_* trae "audioLength": N y a continuación van N bytes sin codificar:
+ *
+ *   {"action":"SEND_AUDIO_TO_GROUP","data":{"groupName":"g","sender":"ana","audioFileName":"a.wav","audioLength":48000}}\n
+ *   <48000 bytes>
+ *
+ * El servidor los pasa del socket a un archivo (AudioStore.receive) de a bloques.
+ * Como hay bytes crudos entre líneas, las líneas se leen como bytes (LineInput) y
+ * no con un BufferedReader, que se adelantaría a decodificar el audio como texto.
+ */
+final class RawBody {
+
+    static final String FIELD = "audioLength";
+    static final long MAX_LENGTH = 256L * 1024 * 1024;
+
+    private RawBody() {}
+
+    /** Bytes que anuncia la línea, o -1 si no trae cuerpo. */
+    static long announced(String line) throws IOException {
+        // Casi ninguna línea lo trae: se evita parsear dos veces las demás
+        if (!line.contains(FIELD)) return -1;
+        String value;
+        try {
+            value = JsonRequests.read(line).optional(FIELD);
+        } catch (IllegalArgumentException e) {
+            return -1;   // sin "action": el error lo contesta process
+        }
+        if (value == null) return -1;
+        long length;
+        try {
+            length = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("audioLength inválido: " + value);
+        }
+        if (length < 0 || length > MAX_LENGTH) throw new IOException("Audio de " + length + " bytes");
+        return length;
+    }
+
+    /**
+     * Stream del socket para los modos bloqueantes, con buffer propio: readLine busca el
+     * \n en bloque y lo que sobra después de la línea lo devuelve read, así transferFrom
+     * baja el audio sin perder bytes. No es thread-safe (un lector por conexión).
+     */
+    static final class LineInput extends InputStream {
+        private final InputStream in;
+        private final byte[] buf = new byte[8 * 1024];
+        private int pos;
+        private int limit;
+
+        LineInput(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Línea terminada en \n (sin \r final), o null si el stream terminó.
+         * Una línea de más de NioServer.MAX_LINE bytes es IOException, igual que en NIO.
+         */
+        String readLine() throws IOException {
+            byte[] line = null;   // solo si la línea cruza el fin del buffer
+            int length = 0;
+            while (true) {
+                if (pos == limit && !fill()) {
+                    if (line == null) return null;
+                    return decode(line, length);
+                }
+                int end = pos;
+                while (end < limit && buf[end] != '\n') end++;
+                int n = end - pos;
+                if (length + n > NioServer.MAX_LINE) throw new IOException("Línea de más de " + NioServer.MAX_LINE + " bytes");
+                if (end < limit && line == null) {
+                    String s = decode(Arrays.copyOfRange(buf, pos, end), n);
+                    pos = end + 1;
+                    return s;
+                }
+                if (line == null) {
+                    line = new byte[Math.max(2 * n, 256)];
+                } else if (length + n > line.length) {
+                    line = Arrays.copyOf(line, Math.max(length + n, 2 * line.length));
+                }
+                System.arraycopy(buf, pos, line, length, n);
+                length += n;
+                pos = end;
+                if (end < limit) {
+                    pos++;
+                    return decode(line, length);
+                }
+            }
+        }
+
+        private static String decode(byte[] bytes, int length) {
+            if (length > 0 && bytes[length - 1] == '\r') length--;
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private boolean fill() throws IOException {
+            pos = 0;
+            limit = 0;
+            int n = in.read(buf);
+            if (n <= 0) return false;
+            limit = n;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !fill()) return -1;
+            return buf[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == limit) {
+                // Lecturas grandes (el audio) van directo al socket sin pasar por buf
+                if (len >= buf.length) return in.read(b, off, len);
+                if (!fill()) return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (limit - pos) + in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
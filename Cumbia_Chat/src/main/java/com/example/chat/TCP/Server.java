@@ -2,89 +2,181 @@ package com.example.chat.TCP;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.example.chat.UDP.UDPAudioServer;
-import com.example.chat.data.Group;
+import com.example.chat.core.ChatState;
+import com.example.chat.core.RateLimiter;
 import com.example.chat.data.HistorialManager;
 import com.example.chat.data.User;
+import com.example.chat.server.ServerMetrics;
 
 /**
- * Servidor TCP principal. Mantiene usuarios conectados, grupos, historial
+ * Servidor TCP principal. Mantiene las conexiones de los usuarios, el historial
  * y coordina las salas de voz UDP (una UDPAudioServer por sala activa).
+ * Usuarios conectados, grupos y miembros están en ChatState, compartidos con el
+ * frontend Ice si corre en el mismo proceso (CumbiaChat.Tcp.Enabled=1).
  */
 public class Server {
     private static final int PORT = 12345;
     private static final int THREAD_POOL_SIZE = 50;
 
-    // username -> handler
-    private static final Map<String, ClientHandler> connectedUsers = Collections.synchronizedMap(new HashMap<>());
-    // groupName -> Group
-    private static final Map<String, Group> groups = Collections.synchronizedMap(new HashMap<>());
+    // username -> handler (cómo llegarle por TCP; quién está conectado lo dice ChatState).
+    // Sin monitor: logins, broadcasts y listas no se esperan entre sí
+    private static final Map<String, ClientHandler> connectedUsers = new ConcurrentHashMap<>();
+    private static final ChatState state = ChatState.shared();
 
     // active voice rooms: groupName -> UDPAudioServer instance
     private static final Map<String, UDPAudioServer> voiceRooms = Collections.synchronizedMap(new HashMap<>());
+    private static final ReentrantLock voiceLock = new ReentrantLock();
 
     private static final HistorialManager historial = new HistorialManager();
 
+    // Cuota por remitente: -Dcumbia.rate.text=5 -Dcumbia.rate.text.burst=20 (igual para audio). 0 = sin límite
+    private static final RateLimiter textLimit = RateLimiter.fromSystemProperties("cumbia.rate.text");
+    private static final RateLimiter audioLimit = RateLimiter.fromSystemProperties("cumbia.rate.audio");
+
+    static {
+        // Mismo registro que el frontend Ice: en un solo proceso salen en su reporte
+        ServerMetrics.gauge("tcp.rate.rejected.text", textLimit::rejected);
+        ServerMetrics.gauge("tcp.rate.rejected.audio", audioLimit::rejected);
+    }
+
+    /**
+     * Modo según -Dcumbia.tcp.mode:
+     *   nio     (por defecto) event loops con Selector, el pool solo hace el trabajo bloqueante
+     *   threads un hilo del pool por conexión, como antes (máximo THREAD_POOL_SIZE clientes)
+     *   virtual un hilo virtual por conexión, sin tope de clientes
+     * Los pedidos con "id" corren aparte: en threads, en un segundo pool (si usaran el
+     * de las conexiones, los lectores podrían quedarse esperando tareas encoladas detrás
+     * de ellos); en virtual, en más hilos virtuales.
+     * En los dos modos bloqueantes cada conexión escribe desde su Outbox, con el
+     * escritor en un hilo virtual: un socket lento solo bloquea a su escritor.
+     */
     public static void main(String[] args) {
-        ExecutorService pool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        try (ServerSocket server = new ServerSocket(PORT, 50, InetAddress.getByName("localhost"))) {
+        startMetricsReporter();
+        switch (System.getProperty("cumbia.tcp.mode", "nio")) {
+            case "threads" -> serveWithThreads(Executors.newFixedThreadPool(THREAD_POOL_SIZE),
+                    Executors.newFixedThreadPool(THREAD_POOL_SIZE), 50);
+            case "virtual" -> {
+                ExecutorService virtual = Executors.newThreadPerTaskExecutor(
+                        Thread.ofVirtual().name("cumbia-tcp-", 0).factory());
+                serveWithThreads(virtual, virtual, 1024);
+            }
+            default -> serveWithSelector();
+        }
+    }
+
+    // Solo, sin el servidor Ice: -Dcumbia.metrics.interval=N imprime las métricas cada N segundos
+    private static void startMetricsReporter() {
+        int interval = Integer.getInteger("cumbia.metrics.interval", 0);
+        if (interval <= 0) return;
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cumbia-tcp-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println(ServerMetrics.format()),
+                interval, interval, TimeUnit.SECONDS);
+    }
+
+    private static void serveWithSelector() {
+        ExecutorService workers = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+        int loops = Integer.getInteger("cumbia.tcp.loops", Runtime.getRuntime().availableProcessors());
+        try {
+            NioServer server = new NioServer(new InetSocketAddress(InetAddress.getByName("localhost"), PORT), loops, workers,
+                    channel -> new JSONProtocolHandler(channel.socket(), connectedUsers, historial, workers, workers));
+            System.out.println("Servidor TCP (NIO, " + loops + " event loops) corriendo en puerto " + PORT);
+            server.serve();
+        } catch (IOException e) {
+            System.err.println("Error en servidor: " + e.getMessage());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private static void serveWithThreads(ExecutorService pool, ExecutorService requests, int backlog) {
+        ExecutorService writers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("cumbia-writer-", 0).factory());
+        try (ServerSocket server = new ServerSocket(PORT, backlog, InetAddress.getByName("localhost"))) {
             System.out.println("Servidor TCP corriendo en puerto " + PORT);
             while (true) {
                 Socket clientSocket = server.accept();
-                JSONProtocolHandler handler = new JSONProtocolHandler(clientSocket, connectedUsers, groups, historial);
+                JSONProtocolHandler handler = new JSONProtocolHandler(clientSocket, connectedUsers, historial, requests, writers);
                 pool.submit(handler);
             }
         } catch (IOException e) {
             System.err.println("Error en servidor: " + e.getMessage());
         } finally {
             pool.shutdown();
+            requests.shutdown();
+            writers.shutdown();
         }
     }
 
     // ---------- user & group helpers ----------
     public static boolean userExists(String username) { return connectedUsers.containsKey(username); }
 
-    public static void registerUser(String username, ClientHandler handler) { connectedUsers.put(username, handler); }
+    public static void registerUser(String username, ClientHandler handler) {
+        if (connectedUsers.put(username, handler) == null) connected(username);
+    }
+
+    public static void unregisterUser(String username) {
+        if (connectedUsers.remove(username) != null) disconnected(username);
+    }
+
+    /** Llamar cuando username entra a connectedUsers (y no estaba). */
+    static void connected(String username) { state.online(username, ChatState.Frontend.TCP); }
 
-    public static void unregisterUser(String username) { connectedUsers.remove(username); }
+    /** Llamar cuando username sale de connectedUsers. */
+    static void disconnected(String username) { state.offline(username, ChatState.Frontend.TCP); }
 
-    public static Set<String> getActiveUsers() { return new HashSet<>(connectedUsers.keySet()); }
+    /** Conectados por TCP o por Ice. Snapshot inmutable: la misma instancia mientras nadie entre ni salga. */
+    public static Set<String> getActiveUsers() { return state.users(); }
 
-    public static Set<String> getAvailableGroups() { return new HashSet<>(groups.keySet()); }
+    /** Snapshot inmutable, igual que getActiveUsers. */
+    public static Set<String> getAvailableGroups() { return state.groups(); }
 
+    /** El creador queda como miembro, como siempre en TCP (en Ice no). */
     public static boolean createGroup(String groupName, User creator) {
-        synchronized (groups) {
-            if (groups.containsKey(groupName)) return false;
-            Group g = new Group(groupName, creator);
-            groups.put(groupName, g);
-            return true;
-        }
+        if (!state.createGroup(groupName)) return false;
+        if (creator != null) state.join(groupName, creator.getUsername());
+        return true;
     }
 
     public static boolean joinGroup(String groupName, User user) {
-        synchronized (groups) {
-            Group g = groups.get(groupName);
-            if (g == null) return false;
-            g.addMember(user);
-            return true;
-        }
+        return state.join(groupName, user.getUsername());
     }
 
+    /**
+     * Manda el mensaje a los miembros conectados del grupo (menos el remitente).
+     * El JSON se arma una vez y los miembros salen del snapshot del grupo; sendMessage
+     * solo encola en la conexión de cada uno, así que no se escribe en ningún socket
+     * ni se toma ningún lock del registro. Los miembros que se unieron por Ice y no tienen conexión
+     * TCP no están en connectedUsers: ese mensaje no les llega por acá.
+     */
     public static void broadcastToGroup(String groupName, String message, String sender) {
-        Group g = groups.get(groupName);
-        if (g == null) return;
+        Set<String> members = state.members(groupName);
+        if (members == null) return;
         
         System.out.println("[GRUPO " + groupName + "] " + sender + ": " + message);
+        String event = JsonRequests.groupEvent(groupName, sender, message);
+        for (String member : members) {
+            if (member.equals(sender)) continue;
+            ClientHandler h = connectedUsers.get(member);
+            if (h != null) h.sendMessage(event);
+        }
     }
 
     public static void sendPrivateMessage(String fromUser, String toUser, String message) {
@@ -103,7 +195,9 @@ public class Server {
      * If a room already exists, returns its port.
      */
     public static int startVoiceRoom(String groupName) {
-        synchronized (voiceRooms) {
+        // Lock y no synchronized: crear la sala abre un socket y arranca un hilo
+        voiceLock.lock();
+        try {
             if (voiceRooms.containsKey(groupName)) {
                 return voiceRooms.get(groupName).getPort();
             }
@@ -117,6 +211,8 @@ public class Server {
                 e.printStackTrace();
                 return -1;
             }
+        } finally {
+            voiceLock.unlock();
         }
     }
 
@@ -124,10 +220,14 @@ public class Server {
      * Stops the voice room for group (if exists)
      */
     public static void stopVoiceRoom(String groupName) {
-        synchronized (voiceRooms) {
-            UDPAudioServer room = voiceRooms.remove(groupName);
-            if (room != null) room.shutdown();
+        UDPAudioServer room;
+        voiceLock.lock();
+        try {
+            room = voiceRooms.remove(groupName);
+        } finally {
+            voiceLock.unlock();
         }
+        if (room != null) room.shutdown();
     }
 
     /**
@@ -149,4 +249,8 @@ public class Server {
     }
 
     public static HistorialManager getHistorial() { return historial; }
+
+    public static RateLimiter textLimit() { return textLimit; }
+
+    public static RateLimiter audioLimit() { return audioLimit; }
 }
@@ -0,0 +1,220 @@
+package com.example.chat.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Estado en memoria compartido por los dos frontends del proceso (TCP y Ice):
+ * quién está conectado y por dónde, qué grupos existen y quién es miembro de cada uno.
+ * Cada frontend guarda aparte solo lo suyo para entregar (ClientHandler, ClientSession).
+ *
+ * Contrato de concurrencia:
+ *  - Todo vive en ConcurrentHashMap: una escritura toma solo el lock del bin de su
+ *    clave (usuario o grupo), nunca uno global, y con ese lock no se llama a código
+ *    de afuera ni se hace I/O.
+ *  - Cada operación es atómica por sí sola; dos seguidas no (crear un grupo y unirse
+ *    son dos pasos).
+ *  - Los cambios de membresía de un usuario corren dentro del compute de su entrada en
+ *    el índice usuario -> grupos, así que se serializan por usuario: terminada cada
+ *    operación, índice y miembros del grupo coinciden (mientras corre, un lector puede
+ *    ver uno de los dos cambios antes que el otro).
+ *  - Las listas (users, groups, members) son snapshots inmutables versionados (ver
+ *    VersionedSet): se leen sin locks y, mientras nada cambie, devuelven la misma
+ *    instancia sin allocations. Ven toda escritura terminada antes de la llamada y
+ *    quizás alguna de las que corren en paralelo.
+ *  - Los Listener se avisan después del cambio, en el hilo que lo hizo y sin locks. Dos
+ *    cambios casi simultáneos del mismo usuario pueden avisarse en otro orden: quien
+ *    escucha vuelve a mirar el estado (isOnline, isMember) antes de actuar.
+ */
+public final class ChatState {
+
+    /** Por dónde está conectado un usuario; puede estar por los dos a la vez. */
+    public enum Frontend { TCP, ICE }
+
+    /** Cambios de conexión y de membresía; se implementan solo los que interesan. */
+    public interface Listener {
+        /** Se conectó por su primer frontend. */
+        default void userOnline(String username) {}
+        /** Se desconectó del último frontend. */
+        default void userOffline(String username) {}
+        default void joined(String groupName, String username) {}
+        default void left(String groupName, String username) {}
+    }
+
+    private static final ChatState SHARED = new ChatState();
+
+    // username -> bits de Frontend por los que está conectado
+    private final ConcurrentHashMap<String, Integer> online = new ConcurrentHashMap<>();
+    private final VersionedSet users = new VersionedSet(online.keySet());
+    // groupName -> miembros
+    private final ConcurrentHashMap<String, VersionedSet> members = new ConcurrentHashMap<>();
+    private final VersionedSet groups = new VersionedSet(members.keySet());
+    // Índice inverso username -> grupos (inmutable, se reemplaza entero dentro del compute).
+    // En modo shard incluye grupos de otros procesos (ver joinElsewhere)
+    private final ConcurrentHashMap<String, Set<String>> memberships = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /** El estado del proceso; los dos frontends usan este. */
+    public static ChatState shared() {
+        return SHARED;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    // ---------- usuarios ----------
+
+    /** true si antes no estaba conectado por ningún frontend. */
+    public boolean online(String username, Frontend via) {
+        int bit = 1 << via.ordinal();
+        int[] before = new int[1];
+        online.compute(username, (u, bits) -> {
+            before[0] = bits == null ? 0 : bits;
+            return before[0] | bit;
+        });
+        if (before[0] != 0) return false;
+        users.changed();
+        for (Listener l : listeners) l.userOnline(username);
+        return true;
+    }
+
+    /** true si ya no queda conectado por ningún frontend. */
+    public boolean offline(String username, Frontend via) {
+        int bit = 1 << via.ordinal();
+        int[] after = {-1};   // -1: no estaba
+        online.computeIfPresent(username, (u, bits) -> {
+            after[0] = bits & ~bit;
+            return after[0] == 0 ? null : after[0];
+        });
+        if (after[0] != 0) return false;
+        users.changed();
+        for (Listener l : listeners) l.userOffline(username);
+        return true;
+    }
+
+    public boolean isOnline(String username) {
+        return online.containsKey(username);
+    }
+
+    /** Conectados por cualquier frontend (snapshot, no cambia después). */
+    public Set<String> users() {
+        return users.snapshot();
+    }
+
+    /** Versión de users(): solo sube (ver VersionedSet). */
+    long usersVersion() {
+        return users.version();
+    }
+
+    // ---------- grupos ----------
+
+    /** false si ya existía. El creador no queda como miembro: eso lo decide cada frontend. */
+    public boolean createGroup(String groupName) {
+        if (members.putIfAbsent(groupName, new VersionedSet(ConcurrentHashMap.newKeySet())) != null) return false;
+        groups.changed();
+        return true;
+    }
+
+    public boolean groupExists(String groupName) {
+        return members.containsKey(groupName);
+    }
+
+    /** Snapshot, no cambia después. */
+    public Set<String> groups() {
+        return groups.snapshot();
+    }
+
+    /** Versión de groups(): solo sube. */
+    long groupsVersion() {
+        return groups.version();
+    }
+
+    /** Miembros del grupo (snapshot), o null si no existe. */
+    public Set<String> members(String groupName) {
+        VersionedSet current = members.get(groupName);
+        return current == null ? null : current.snapshot();
+    }
+
+    public int memberCount(String groupName) {
+        VersionedSet current = members.get(groupName);
+        return current == null ? 0 : current.size();
+    }
+
+    public boolean isMember(String groupName, String username) {
+        VersionedSet current = members.get(groupName);
+        return current != null && current.contains(username);
+    }
+
+    /** Grupos a los que se unió el usuario (vacío si ninguno); el set no cambia después. */
+    public Set<String> groupsOf(String username) {
+        return memberships.getOrDefault(username, Set.of());
+    }
+
+    /** false si el grupo no existe; unirse dos veces no es error. */
+    public boolean join(String groupName, String username) {
+        VersionedSet current = members.get(groupName);
+        if (current == null) return false;
+        boolean[] added = new boolean[1];
+        memberships.compute(username, (u, joined) -> {
+            Set<String> next = with(joined, groupName);
+            added[0] = current.add(username);
+            return next;
+        });
+        if (added[0]) {
+            for (Listener l : listeners) l.joined(groupName, username);
+        }
+        return true;
+    }
+
+    /** Modo shard: el grupo vive en otro proceso; acá solo queda en el índice, para el logout. */
+    public void joinElsewhere(String groupName, String username) {
+        memberships.compute(username, (u, joined) -> with(joined, groupName));
+    }
+
+    public void leave(String groupName, String username) {
+        VersionedSet current = members.get(groupName);
+        boolean[] removed = new boolean[1];
+        memberships.compute(username, (u, joined) -> {
+            removed[0] = current != null && current.remove(username);
+            if (joined == null || !joined.contains(groupName)) return joined;
+            Set<String> next = new HashSet<>(joined);
+            next.remove(groupName);
+            return next.isEmpty() ? null : Set.copyOf(next);
+        });
+        if (removed[0]) {
+            for (Listener l : listeners) l.left(groupName, username);
+        }
+    }
+
+    /** Saca al usuario de todos sus grupos y devuelve cuáles eran (con los de otros shards). */
+    public Set<String> leaveAll(String username) {
+        List<String> removed = new ArrayList<>();
+        AtomicReference<Set<String>> before = new AtomicReference<>(Set.of());
+        memberships.computeIfPresent(username, (u, joined) -> {
+            before.set(joined);
+            for (String groupName : joined) {
+                VersionedSet current = members.get(groupName);
+                if (current != null && current.remove(username)) removed.add(groupName);
+            }
+            return null;
+        });
+        for (String groupName : removed) {
+            for (Listener l : listeners) l.left(groupName, username);
+        }
+        return before.get();
+    }
+
+    private static Set<String> with(Set<String> joined, String groupName) {
+        if (joined == null) return Set.of(groupName);
+        if (joined.contains(groupName)) return joined;
+        Set<String> next = new HashSet<>(joined);
+        next.add(groupName);
+        return Set.copyOf(next);
+    }
+}
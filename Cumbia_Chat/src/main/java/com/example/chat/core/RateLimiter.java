@@ -0,0 +1,114 @@
+package com.example.chat.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Límite de mensajes por remitente (token bucket en forma de GCRA).
+ * Por cada clave se guarda un solo long: el instante teórico en que el balde
+ * vuelve a estar lleno. Admitir es un CAS sobre ese valor, sin locks ni hilos
+ * que rellenen baldes. Un rechazo no escribe nada, solo suma al contador.
+ *
+ * Las claves con el balde lleno se barren cada PURGE_EVERY claves nuevas, de a un
+ * hilo por vez. El barrido marca la celda como muerta con un CAS antes de sacarla,
+ * así un tryAcquire que ya la tenía en la mano reintenta con una celda nueva en vez
+ * de gastar su cuota en una que ya no está en el mapa.
+ *
+ * Con rate <= 0 el limitador está apagado y todo pasa.
+ */
+public final class RateLimiter {
+
+    // Por encima de esta cantidad de claves se barren las que ya tienen el balde lleno
+    private static final int PURGE_THRESHOLD = 10_000;
+    // Cada cuántas claves nuevas se mira si hay que barrer
+    private static final int PURGE_EVERY = 1024;
+    // Celda ya barrida: nadie puede cobrar sobre ella
+    private static final long DEAD = Long.MIN_VALUE;
+
+    private final long emissionNanos;
+    private final long toleranceNanos;
+    private final Map<String, AtomicLong> fullAt = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger inserts = new AtomicInteger();
+    private final AtomicBoolean purging = new AtomicBoolean();
+
+    /**
+     * @param perSecond mensajes por segundo sostenidos (0 = sin límite)
+     * @param burst     mensajes seguidos que se aceptan con el balde lleno
+     */
+    public RateLimiter(double perSecond, int burst) {
+        this.emissionNanos = perSecond > 0 ? Math.max(1L, (long) (1_000_000_000L / perSecond)) : 0L;
+        this.toleranceNanos = emissionNanos * (Math.max(1, burst) - 1L);
+    }
+
+    /** Lee rate y burst de propiedades del sistema, p. ej. -Dcumbia.rate.text=5 -Dcumbia.rate.text.burst=20. */
+    public static RateLimiter fromSystemProperties(String prefix) {
+        double rate = Double.parseDouble(System.getProperty(prefix, "0"));
+        int burst = Integer.getInteger(prefix + ".burst", Math.max(1, (int) Math.ceil(rate)));
+        return new RateLimiter(rate, burst);
+    }
+
+    public boolean enabled() {
+        return emissionNanos > 0;
+    }
+
+    /** true si el mensaje de key entra; false si excede su cuota (y se cuenta el rechazo). */
+    public boolean tryAcquire(String key) {
+        if (emissionNanos == 0) return true;
+        long now = System.nanoTime();
+
+        AtomicLong cell = fullAt.get(key);
+        if (cell == null) {
+            if (inserts.incrementAndGet() % PURGE_EVERY == 0) maybePurge(now);
+            cell = fullAt.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+
+        while (true) {
+            long tat = cell.get();
+            if (tat == DEAD) {
+                // La barrió otro hilo: se cambia por una nueva (balde lleno)
+                cell = fullAt.compute(key, (k, c) -> c == null || c.get() == DEAD ? new AtomicLong(now) : c);
+                continue;
+            }
+            long base = tat - now > 0 ? tat : now;
+            if (base - now > toleranceNanos) {
+                rejected.increment();
+                return false;
+            }
+            if (cell.compareAndSet(tat, base + emissionNanos)) return true;
+        }
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    /** Claves guardadas ahora mismo. */
+    int keys() {
+        return fullAt.size();
+    }
+
+    private void maybePurge(long now) {
+        if (fullAt.size() <= PURGE_THRESHOLD || !purging.compareAndSet(false, true)) return;
+        try {
+            purge(now);
+        } finally {
+            purging.set(false);
+        }
+    }
+
+    // Una clave con el balde lleno equivale a una que no existe; se puede soltar
+    private void purge(long now) {
+        for (Map.Entry<String, AtomicLong> e : fullAt.entrySet()) {
+            AtomicLong cell = e.getValue();
+            long tat = cell.get();
+            if (tat != DEAD && tat - now <= 0 && cell.compareAndSet(tat, DEAD)) {
+                fullAt.remove(e.getKey(), cell);
+            }
+        }
+    }
+}
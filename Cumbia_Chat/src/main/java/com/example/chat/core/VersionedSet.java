@@ -0,0 +1,68 @@
+package com.example.chat.core;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Set concurrente que se lee mucho más de lo que cambia (usuarios, grupos, miembros)
+ * con un snapshot inmutable publicado aparte. Cada escritura, ya aplicada al set,
+ * sube la versión; snapshot() devuelve la copia publicada mientras su versión siga
+ * vigente, sin locks ni allocations, y si no la rehace una vez. Una copia puede
+ * traer cambios de versiones posteriores a la suya, pero nunca le falta uno anterior.
+ */
+final class VersionedSet {
+
+    private record Snapshot(long version, Set<String> names) {}
+
+    private final Set<String> source;
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<Snapshot> published = new AtomicReference<>(new Snapshot(0, Set.of()));
+
+    /** source: set concurrente (o keySet de un ConcurrentHashMap) que arranca vacío. */
+    VersionedSet(Set<String> source) {
+        this.source = source;
+    }
+
+    boolean add(String name) {
+        if (!source.add(name)) return false;
+        changed();
+        return true;
+    }
+
+    boolean remove(String name) {
+        if (!source.remove(name)) return false;
+        changed();
+        return true;
+    }
+
+    boolean contains(String name) {
+        return source.contains(name);
+    }
+
+    int size() {
+        return source.size();
+    }
+
+    /** Cambios hechos hasta ahora; solo sube. */
+    long version() {
+        return version.get();
+    }
+
+    /** Para cuando el set cambia por fuera (keySet de un mapa); llamar después del cambio. */
+    void changed() {
+        version.incrementAndGet();
+    }
+
+    Set<String> snapshot() {
+        Snapshot current = published.get();
+        long v = version.get();
+        if (current.version() == v) return current.names();
+        Snapshot fresh = new Snapshot(v, Set.copyOf(source));
+        // Otro lector pudo publicar una más nueva mientras tanto: esa se queda
+        while (current.version() < v && !published.compareAndSet(current, fresh)) {
+            current = published.get();
+        }
+        return fresh.names();
+    }
+}
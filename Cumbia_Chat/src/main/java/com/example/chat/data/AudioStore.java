@@ -0,0 +1,305 @@
+package com.example.chat.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Almacén de audios direccionado por contenido.
+ * Cada audio se guarda una sola vez en audios/blobs/<ab>/<cd>/<sha256> y los nombres
+ * que ven los clientes (fileId, p. ej. "ana_1700000000.wav") solo referencian ese blob
+ * desde el índice audios/index.tsv, que además guarda tamaño, duración y formato.
+ * Reenviar la misma nota no vuelve a escribirla.
+ */
+public class AudioStore {
+    private static final Path ROOT = Paths.get("audios");
+    private static final Path BLOBS = ROOT.resolve("blobs");
+    private static final Path TMP = ROOT.resolve(".tmp");
+    // Una línea por audio: fileId \t hash \t size \t durationMillis \t format
+    private static final Path INDEX = ROOT.resolve("index.tsv");
+    // Cuánto del inicio del archivo se mira para sacar la duración del header WAV
+    private static final int HEADER_BYTES = 4096;
+    // ReentrantLock por lo mismo que HistorialManager (hilos virtuales)
+    private static final ReentrantLock LOCK = new ReentrantLock();
+
+    /** Metadatos de un audio guardado; durationMillis es -1 si no se pudo calcular. */
+    public record AudioMeta(String fileId, String hash, long size, long durationMillis, String format) {}
+
+    // fileId -> metadatos; se carga del índice al primer acceso (bajo LOCK)
+    private static Map<String, AudioMeta> index;
+
+    /**
+     * Guarda data con el nombre fileId. Si el contenido ya existía solo se agrega la referencia.
+     */
+    public static AudioMeta store(String fileId, byte[] data) throws IOException {
+        checkFileId(fileId);
+        String hash = HexFormat.of().formatHex(digest().digest(data));
+        Path blob = blobPath(hash);
+        boolean duplicate = Files.exists(blob);
+        if (!duplicate) {
+            Files.createDirectories(TMP);
+            Path tmp = Files.createTempFile(TMP, hash, ".tmp");
+            Files.write(tmp, data);
+            duplicate = !moveIntoPlace(tmp, blob);
+        }
+        byte[] header = data.length > HEADER_BYTES ? Arrays.copyOf(data, HEADER_BYTES) : data;
+        return register(fileId, hash, data.length, header, duplicate);
+    }
+
+    /**
+     * Igual que store pero para un archivo ya escrito (subidas por partes): se hashea
+     * leyéndolo de a bloques y se mueve al blob, o se borra si el contenido ya existía.
+     */
+    public static AudioMeta storeFile(String fileId, Path file) throws IOException {
+        checkFileId(fileId);
+        MessageDigest md = digest();
+        byte[] header = new byte[0];
+        long size = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                if (size < HEADER_BYTES) {
+                    int keep = (int) Math.min(n, HEADER_BYTES - size);
+                    byte[] grown = Arrays.copyOf(header, header.length + keep);
+                    System.arraycopy(buf, 0, grown, header.length, keep);
+                    header = grown;
+                }
+                md.update(buf, 0, n);
+                size += n;
+            }
+        }
+        String hash = HexFormat.of().formatHex(md.digest());
+        boolean duplicate = !moveIntoPlace(file, blobPath(hash));
+        return register(fileId, hash, size, header, duplicate);
+    }
+
+    /**
+     * Abre un audio que llega por partes (cuerpo crudo del protocolo TCP). Cada write
+     * va directo a un archivo temporal y al hash, así la memoria no depende del tamaño.
+     */
+    public static Incoming receive() throws IOException {
+        Files.createDirectories(TMP);
+        return new Incoming(Files.createTempFile(TMP, "in", ".tmp"));
+    }
+
+    /** Atajo de receive para streams bloqueantes: copia exactamente length bytes de in. */
+    public static AudioMeta storeStream(String fileId, InputStream in, long length) throws IOException {
+        try (Incoming incoming = receive()) {
+            incoming.transferFrom(in, length);
+            return incoming.commit(fileId);
+        }
+    }
+
+    /** Ver receive. close sin commit borra el temporal. */
+    public static final class Incoming implements Closeable {
+        private final Path tmp;
+        private final FileChannel channel;
+        private final MessageDigest md = digest();
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        private long size;
+        private boolean done;
+
+        private Incoming(Path tmp) throws IOException {
+            this.tmp = tmp;
+            this.channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+        }
+
+        /** Consume todo src (puede ser un buffer directo del socket). */
+        public void write(ByteBuffer src) throws IOException {
+            if (header.hasRemaining()) {
+                ByteBuffer head = src.duplicate();
+                head.limit(head.position() + Math.min(head.remaining(), header.remaining()));
+                header.put(head);
+            }
+            md.update(src.duplicate());
+            while (src.hasRemaining()) size += channel.write(src);
+        }
+
+        public void transferFrom(InputStream in, long length) throws IOException {
+            transferFrom(in, length, new byte[(int) Math.min(64 * 1024, Math.max(1, length))]);
+        }
+
+        /** Igual, con un buffer de quien llama (p. ej. uno por conexión). */
+        public void transferFrom(InputStream in, long length, byte[] buf) throws IOException {
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) throw new EOFException("Faltan " + remaining + " bytes del audio");
+                write(ByteBuffer.wrap(buf, 0, n));
+                remaining -= n;
+            }
+        }
+
+        public long size() { return size; }
+
+        public AudioMeta commit(String fileId) throws IOException {
+            checkFileId(fileId);
+            channel.close();
+            done = true;
+            String hash = HexFormat.of().formatHex(md.digest());
+            boolean duplicate = !moveIntoPlace(tmp, blobPath(hash));
+            return register(fileId, hash, size, Arrays.copyOf(header.array(), header.position()), duplicate);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (done) return;
+            done = true;
+            channel.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Metadatos de fileId, o null si no está en el almacén. */
+    public static AudioMeta meta(String fileId) throws IOException {
+        LOCK.lock();
+        try {
+            return loadIndex().get(fileId);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Archivo con el contenido de fileId. Los audios anteriores al almacén siguen
+     * en audios/<fileId>. Devuelve null si no existe.
+     */
+    public static Path resolve(String fileId) throws IOException {
+        AudioMeta m = meta(fileId);
+        if (m != null) return blobPath(m.hash());
+        if (fileId.isEmpty() || fileId.contains("/") || fileId.contains("\\") || fileId.startsWith(".")) return null;
+        Path legacy = ROOT.resolve(fileId);
+        return Files.isRegularFile(legacy) ? legacy : null;
+    }
+
+    /**
+     * Hasta length bytes de fileId desde offset, mapeados del archivo (sin copiarlos al heap).
+     * Devuelve null si el audio no existe y un buffer vacío si offset pasa el final.
+     */
+    public static ByteBuffer read(String fileId, long offset, int length) throws IOException {
+        Path p = resolve(fileId);
+        if (p == null) return null;
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (offset < 0 || offset >= size || length <= 0) return ByteBuffer.allocate(0);
+            // El mapeo sigue siendo válido después de cerrar el canal
+            return ch.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(length, size - offset));
+        }
+    }
+
+    // El fileId viene del cliente (remitente y nombre) y va tal cual a una línea del índice
+    private static void checkFileId(String fileId) throws IOException {
+        if (fileId.isEmpty() || fileId.indexOf('\t') >= 0 || fileId.indexOf('\n') >= 0 || fileId.indexOf('\r') >= 0) {
+            throw new IOException("Nombre de audio inválido: " + fileId.replaceAll("\\s", " "));
+        }
+    }
+
+    private static AudioMeta register(String fileId, String hash, long size, byte[] header, boolean duplicate) throws IOException {
+        AudioMeta m = new AudioMeta(fileId, hash, size, wavDurationMillis(header), formatOf(fileId, header));
+        String line = String.join("\t", m.fileId(), m.hash(), String.valueOf(m.size()),
+                String.valueOf(m.durationMillis()), m.format()) + "\n";
+        LOCK.lock();
+        try {
+            Map<String, AudioMeta> idx = loadIndex();
+            Files.write(INDEX, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            idx.put(fileId, m);
+        } finally {
+            LOCK.unlock();
+        }
+        if (duplicate) System.out.println("  [AUDIO_STORE] " + fileId + " ya existía como " + hash.substring(0, 12));
+        return m;
+    }
+
+    // Llamar solo con LOCK tomado. Si un fileId aparece varias veces gana la última línea
+    private static Map<String, AudioMeta> loadIndex() throws IOException {
+        if (index != null) return index;
+        Map<String, AudioMeta> idx = new HashMap<>();
+        if (Files.exists(INDEX)) {
+            try (BufferedReader r = Files.newBufferedReader(INDEX, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    String[] f = line.split("\t");
+                    if (f.length < 5) continue;
+                    idx.put(f[0], new AudioMeta(f[0], f[1], Long.parseLong(f[2]), Long.parseLong(f[3]), f[4]));
+                }
+            }
+        } else {
+            Files.createDirectories(ROOT);
+        }
+        index = idx;
+        return idx;
+    }
+
+    // Devuelve false si el blob ya existía (tmp se borra)
+    private static boolean moveIntoPlace(Path tmp, Path blob) throws IOException {
+        if (Files.exists(blob)) {
+            Files.deleteIfExists(tmp);
+            return false;
+        }
+        Files.createDirectories(blob.getParent());
+        try {
+            Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(tmp);
+            return false;
+        }
+    }
+
+    private static Path blobPath(String hash) {
+        return BLOBS.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String formatOf(String fileId, byte[] header) {
+        if (isWav(header)) return "wav";
+        int dot = fileId.lastIndexOf('.');
+        return dot >= 0 && dot < fileId.length() - 1 ? fileId.substring(dot + 1).toLowerCase(Locale.ROOT) : "bin";
+    }
+
+    private static boolean isWav(byte[] h) {
+        return h.length >= 12
+                && h[0] == 'R' && h[1] == 'I' && h[2] == 'F' && h[3] == 'F'
+                && h[8] == 'W' && h[9] == 'A' && h[10] == 'V' && h[11] == 'E';
+    }
+
+    // Duración a partir de los chunks "fmt " (byteRate) y "data" (tamaño) del header RIFF
+    private static long wavDurationMillis(byte[] h) {
+        if (!isWav(h)) return -1;
+        ByteBuffer b = ByteBuffer.wrap(h).order(ByteOrder.LITTLE_ENDIAN);
+        long byteRate = 0;
+        int pos = 12;
+        while (pos + 8 <= h.length) {
+            String id = new String(h, pos, 4, StandardCharsets.US_ASCII);
+            long len = b.getInt(pos + 4) & 0xffffffffL;
+            // byteRate ocupa los bytes 16..19 del chunk (contando id y largo)
+            if (id.equals("fmt ") && len >= 12 && pos + 20 <= h.length) {
+                byteRate = b.getInt(pos + 16) & 0xffffffffL;
+            } else if (id.equals("data")) {
+                return byteRate > 0 ? len * 1000 / byteRate : -1;
+            }
+            if (len >= h.length) break;
+            pos += 8 + (int) ((len + 1) & ~1L);
+        }
+        return -1;
+    }
+}
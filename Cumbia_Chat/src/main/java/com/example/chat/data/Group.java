@@ -17,7 +17,10 @@ public class Group {
     public List<User> getMembers() { return members; }
 
     public void addMember(User u) {
-        if (!members.contains(u)) members.add(u);
+        // contains + add juntos; el monitor de la lista solo cubre operaciones en memoria
+        synchronized (members) {
+            if (!members.contains(u)) members.add(u);
+        }
     }
 
     public void removeMember(User u) {
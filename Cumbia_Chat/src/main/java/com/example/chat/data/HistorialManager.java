@@ -1,10 +1,16 @@
 package com.example.chat.data;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -13,8 +19,23 @@ import java.util.stream.Collectors;
  */
 public class HistorialManager {
     private static final Path ROOT = Paths.get(".");
-    private static final SimpleDateFormat SDF = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private static final Object LOCK = new Object();
+    // DateTimeFormatter es inmutable; el SimpleDateFormat compartido se corrompía con envíos concurrentes
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // ReentrantLock y no synchronized: con hilos virtuales un monitor tomado durante
+    // I/O de archivo fija el hilo portador
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    // Formato de cada línea, ver formatLine
+    private static final Pattern LINE = Pattern.compile("^\\[(.+?)\\] \\[(\\w+)\\] (.+?) -> (.+?) : (.*)$");
+
+    // Índice de offsets por archivo de historial; se construye al primer acceso (ver indexFor).
+    // El mapa y los índices publicados se tocan solo con LOCK tomado
+    private static final Map<Path, HistoryIndex> indexes = new HashMap<>();
+
+    /** Página de historial: líneas [firstSeq, firstSeq + lines.size()) de total líneas. */
+    public record HistorialPage(List<String> lines, int firstSeq, int total) {}
+
+    /** Línea de historial separada en campos. */
+    public record HistorialEntry(String date, String type, String sender, String chat, String content) {}
 
     private static Path pathForChat(String chatName) {
         String safe = chatName.replaceAll("\\s+", "_");
@@ -26,19 +47,44 @@ public class HistorialManager {
     }
 
     private static void appendLine(Path p, String line) {
-        synchronized (LOCK) {
-            try (BufferedWriter bw = Files.newBufferedWriter(p, StandardCharsets.UTF_8,
-                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-                bw.write(line);
-                bw.newLine();
-            } catch (IOException e) {
-                System.err.println("Error escribiendo historial: " + e.getMessage());
-            }
+        byte[] bytes = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        LOCK.lock();
+        try {
+            Files.write(p, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            HistoryIndex idx = indexes.get(p);
+            if (idx != null) idx.append(bytes);
+        } catch (IOException e) {
+            System.err.println("Error escribiendo historial: " + e.getMessage());
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    // Llamar sin LOCK. El recorrido completo del primer acceso se hace afuera para no frenar
+    // a los demás chats; con el lock solo se pone al día con lo agregado mientras tanto
+    private static HistoryIndex indexFor(Path p) throws IOException {
+        LOCK.lock();
+        try {
+            HistoryIndex idx = indexes.get(p);
+            if (idx != null) return idx;
+        } finally {
+            LOCK.unlock();
+        }
+        HistoryIndex built = HistoryIndex.build(p);
+        LOCK.lock();
+        try {
+            HistoryIndex idx = indexes.get(p);
+            if (idx != null) return idx;   // otro lector ganó
+            built.catchUp(p);
+            indexes.put(p, built);
+            return built;
+        } finally {
+            LOCK.unlock();
         }
     }
 
     private static String formatLine(String tipo, String remitente, String destino, String contenido) {
-        return String.format("[%s] [%s] %s -> %s : %s", SDF.format(new Date()), tipo, remitente, destino, contenido);
+        return String.format("[%s] [%s] %s -> %s : %s", DATE.format(LocalDateTime.now()), tipo, remitente, destino, contenido);
     }
 
     // Registrar texto
@@ -58,34 +104,66 @@ public class HistorialManager {
     // Leer todo
     public static String leerHistorialCompleto(String chatName) {
         Path p = pathForChat(chatName);
-        synchronized (LOCK) {
-            try {
-                if (!Files.exists(p)) return "(Historial vacío)";
-                List<String> all = Files.readAllLines(p, StandardCharsets.UTF_8);
-                if (all.isEmpty()) return "(Historial vacío)";
-                return String.join(System.lineSeparator(), all);
-            } catch (IOException e) {
-                return "Error leyendo historial: " + e.getMessage();
-            }
+        LOCK.lock();
+        try {
+            if (!Files.exists(p)) return "(Historial vacío)";
+            List<String> all = Files.readAllLines(p, StandardCharsets.UTF_8);
+            if (all.isEmpty()) return "(Historial vacío)";
+            return String.join(System.lineSeparator(), all);
+        } catch (IOException e) {
+            return "Error leyendo historial: " + e.getMessage();
+        } finally {
+            LOCK.unlock();
         }
     }
 
     // Leer últimas N
     public static String leerHistorial(String chatName, int n) {
         if (n <= 0) return "(Solicitud inválida)";
+        try {
+            HistorialPage page = leerPagina(chatName, -1, n);
+            if (page.lines().isEmpty()) return "(Historial vacío)";
+            return String.join(System.lineSeparator(), page.lines());
+        } catch (IOException e) {
+            return "Error leyendo historial: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Lee hasta limit líneas anteriores a beforeSeq (beforeSeq < 0 = desde el final).
+     * Usa el índice de offsets, así el costo depende de limit y no del largo del chat.
+     */
+    public static HistorialPage leerPagina(String chatName, long beforeSeq, int limit) throws IOException {
         Path p = pathForChat(chatName);
-        synchronized (LOCK) {
-            try {
-                if (!Files.exists(p)) return "(Historial vacío)";
-                List<String> all = Files.readAllLines(p, StandardCharsets.UTF_8);
-                int size = all.size();
-                if (size == 0) return "(Historial vacío)";
-                int from = Math.max(0, size - n);
-                return String.join(System.lineSeparator(), all.subList(from, size));
-            } catch (IOException e) {
-                return "Error leyendo historial: " + e.getMessage();
-            }
+        int total, from, to;
+        long start, stop;
+        HistoryIndex idx = indexFor(p);
+        LOCK.lock();
+        try {
+            total = idx.count();
+            to = (beforeSeq < 0 || beforeSeq > total) ? total : (int) beforeSeq;
+            from = Math.max(0, to - Math.max(0, limit));
+            start = idx.offsetOf(from);
+            stop = idx.offsetOf(to);
+        } finally {
+            LOCK.unlock();
         }
+        if (stop <= start) return new HistorialPage(List.of(), from, total);
+
+        // El archivo solo crece al final: el rango ya indexado se puede leer fuera del lock
+        ByteBuffer buf = ByteBuffer.allocate((int) (stop - start));
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            while (buf.hasRemaining() && ch.read(buf, start + buf.position()) > 0) { }
+        }
+        String text = new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+        return new HistorialPage(text.lines().toList(), from, total);
+    }
+
+    // Separa una línea escrita por formatLine; si no coincide se devuelve como texto plano
+    public static HistorialEntry parseLine(String line) {
+        Matcher m = LINE.matcher(line);
+        if (!m.matches()) return new HistorialEntry("", "TEXT", "", "", line);
+        return new HistorialEntry(m.group(1), m.group(2), m.group(3), m.group(4), m.group(5));
     }
 
     // Buscar
@@ -93,18 +171,19 @@ public class HistorialManager {
         if (termino == null || termino.trim().isEmpty()) return "(Término vacío)";
         Path p = pathForChat(chatName);
         String term = termino.toLowerCase(Locale.ROOT);
-        synchronized (LOCK) {
-            try {
-                if (!Files.exists(p)) return "(Historial vacío)";
-                List<String> all = Files.readAllLines(p, StandardCharsets.UTF_8);
-                List<String> found = all.stream()
-                        .filter(l -> l.toLowerCase(Locale.ROOT).contains(term))
-                        .collect(Collectors.toList());
-                if (found.isEmpty()) return "(No se encontraron coincidencias para: " + termino + ")";
-                return String.join(System.lineSeparator(), found);
-            } catch (IOException e) {
-                return "Error buscando: " + e.getMessage();
-            }
+        LOCK.lock();
+        try {
+            if (!Files.exists(p)) return "(Historial vacío)";
+            List<String> all = Files.readAllLines(p, StandardCharsets.UTF_8);
+            List<String> found = all.stream()
+                    .filter(l -> l.toLowerCase(Locale.ROOT).contains(term))
+                    .collect(Collectors.toList());
+            if (found.isEmpty()) return "(No se encontraron coincidencias para: " + termino + ")";
+            return String.join(System.lineSeparator(), found);
+        } catch (IOException e) {
+            return "Error buscando: " + e.getMessage();
+        } finally {
+            LOCK.unlock();
         }
     }
 }
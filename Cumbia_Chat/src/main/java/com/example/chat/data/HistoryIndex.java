@@ -0,0 +1,82 @@
+package com.example.chat.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Índice en memoria de un archivo de historial: offset en bytes donde empieza
+ * cada línea. Con él una página de N mensajes se lee con una sola lectura
+ * posicional, sin recorrer el archivo completo.
+ * Solo cuenta líneas completas (terminadas en '\n'): un final a medio escribir
+ * entra cuando llega su salto de línea.
+ * No es thread-safe: HistorialManager lo usa bajo su lock una vez publicado.
+ */
+class HistoryIndex {
+
+    private long[] starts = new long[64];
+    private int count;
+    // Fin de la última línea completa
+    private long end;
+    // Bytes del archivo ya recorridos
+    private long length;
+
+    /**
+     * Construye el índice recorriendo el archivo una sola vez (se hace al primer acceso,
+     * sin lock: el archivo solo crece, lo que se agregue mientras tanto lo toma catchUp).
+     */
+    static HistoryIndex build(Path p) throws IOException {
+        HistoryIndex idx = new HistoryIndex();
+        idx.catchUp(p);
+        return idx;
+    }
+
+    /** Recorre lo que se agregó al archivo desde la última vez. */
+    void catchUp(Path p) throws IOException {
+        if (!Files.exists(p)) return;
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            while (ch.read(buf, length) > 0) {
+                buf.flip();
+                consume(buf);
+                buf.clear();
+            }
+        }
+    }
+
+    /**
+     * Registra bytes recién agregados al final del archivo. Un mensaje con saltos de
+     * línea adentro ocupa varias líneas físicas y cuenta como varias, igual que en build.
+     */
+    void append(byte[] chunk) {
+        consume(ByteBuffer.wrap(chunk));
+    }
+
+    private void consume(ByteBuffer buf) {
+        while (buf.hasRemaining()) {
+            if (buf.get() == '\n') {
+                add(end);
+                end = length + 1;
+            }
+            length++;
+        }
+    }
+
+    private void add(long start) {
+        if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+        starts[count++] = start;
+    }
+
+    int count() { return count; }
+
+    long end() { return end; }
+
+    /** Offset donde empieza la línea seq; para seq == count() es el fin de la última línea. */
+    long offsetOf(int seq) {
+        return seq < count ? starts[seq] : end;
+    }
+}
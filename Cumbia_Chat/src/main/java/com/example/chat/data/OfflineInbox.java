@@ -0,0 +1,228 @@
+package com.example.chat.data;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buzón de mensajes privados para usuarios desconectados.
+ * Cada usuario tiene un archivo solo-append inbox/<usuario en hex>.inbox con registros
+ * [int largo][campos], y en memoria se guarda cuántos registros quedan, desde dónde
+ * y dónde termina el último completo.
+ * Al hacer login el buzón se lee por tandas (nunca entero en memoria): read devuelve
+ * una tanda y ack la da por entregada; al entregar el último registro se borra el archivo.
+ * Si el proceso se cae a mitad, lo ya entregado de ese buzón se vuelve a entregar.
+ */
+public class OfflineInbox {
+
+    /** Mensaje guardado; chatName es el chat con el que se entrega al receptor. */
+    public record InboxMessage(String chatName, String sender, String content, String type, String date) {}
+
+    /** Tanda leída del buzón: registros del archivo entre from y to. */
+    public record Batch(List<InboxMessage> messages, long from, long to) {
+        public static final Batch EMPTY = new Batch(List.of(), 0, 0);
+
+        public boolean isEmpty() {
+            return messages.isEmpty();
+        }
+    }
+
+    // Registros de un buzón; se construye al primer acceso y se toca con el lock del usuario.
+    // Los registros antes de start ya se entregaron
+    private static final class Mailbox {
+        int count;
+        long start;
+        long end;
+
+        void add(long length) {
+            count++;
+            end += length;
+        }
+    }
+
+    private static final int STRIPES = 64;
+
+    private final Path dir;
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    // Concurrente: cada usuario lo toca con su lock, pero un lock cubre muchos usuarios
+    // y usuarios de locks distintos escriben el mismo mapa a la vez
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    public OfflineInbox(Path dir) {
+        this.dir = dir;
+        for (int i = 0; i < STRIPES; i++) locks[i] = new ReentrantLock();
+    }
+
+    /**
+     * Lock del usuario. Quien decide entre entregar en vivo o guardar en el buzón
+     * debe tomarlo, igual que el login mientras registra la sesión y reproduce el buzón.
+     */
+    public ReentrantLock lockFor(String username) {
+        return locks[(username.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    // Hex del nombre en UTF-8: no hay dos usuarios con el mismo archivo, ni siquiera
+    // en sistemas de archivos que no distinguen mayúsculas
+    private Path pathFor(String username) {
+        return dir.resolve(HexFormat.of().formatHex(username.getBytes(StandardCharsets.UTF_8)) + ".inbox");
+    }
+
+    // Archivo de antes, <usuario>.box con los caracteres raros cambiados por _: solo es suyo
+    // si su nombre no tenía ninguno
+    private Path legacyPathFor(String username) {
+        return username.matches("[\\w.-]+") ? dir.resolve(username + ".box") : null;
+    }
+
+    public void store(String username, InboxMessage msg) throws IOException {
+        byte[][] fields = {
+                bytes(msg.chatName()), bytes(msg.sender()), bytes(msg.content()), bytes(msg.type()), bytes(msg.date())
+        };
+        int length = 0;
+        for (byte[] f : fields) length += 4 + f.length;
+
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length);
+        for (byte[] f : fields) record.putInt(f.length).put(f);
+        record.flip();
+
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            Mailbox box = mailboxFor(username);
+            Files.createDirectories(dir);
+            // Se escribe desde el fin del último registro completo: si quedó uno a medio
+            // escribir (caída a mitad de un store) se pisa en vez de quedar delante
+            try (FileChannel ch = FileChannel.open(pathFor(username),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ch.truncate(box.end);
+                long pos = box.end;
+                while (record.hasRemaining()) pos += ch.write(record, pos);
+            }
+            box.add(4 + length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int pending(String username) throws IOException {
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            return mailboxFor(username).count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hasta max mensajes pendientes, en orden, leídos del disco. No borra nada: la tanda
+     * sigue pendiente hasta ack, así se puede entregar sin tener el lock.
+     */
+    public Batch read(String username, int max) throws IOException {
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            Mailbox box = mailboxFor(username);
+            if (box.count == 0) return Batch.EMPTY;
+
+            List<InboxMessage> messages = new ArrayList<>(Math.min(max, box.count));
+            long pos = box.start;
+            try (FileChannel ch = FileChannel.open(pathFor(username), StandardOpenOption.READ)) {
+                ch.position(box.start);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch), 64 * 1024));
+                while (messages.size() < max && messages.size() < box.count) {
+                    int length = in.readInt();
+                    messages.add(new InboxMessage(readField(in), readField(in), readField(in), readField(in), readField(in)));
+                    pos += 4 + length;
+                }
+            }
+            return new Batch(messages, box.start, pos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Da por entregada una tanda de read; si era lo último, borra el buzón. */
+    public void ack(String username, Batch batch) throws IOException {
+        if (batch.isEmpty()) return;
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            Mailbox box = mailboxes.get(username);
+            // Otro login ya la entregó
+            if (box == null || box.start != batch.from()) return;
+            box.start = batch.to();
+            box.count -= batch.messages().size();
+            if (box.count == 0) {
+                Files.deleteIfExists(pathFor(username));
+                mailboxes.remove(username);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Llamar con el lock del usuario tomado
+    private Mailbox mailboxFor(String username) throws IOException {
+        Mailbox box = mailboxes.get(username);
+        if (box != null) return box;
+
+        box = new Mailbox();
+        Path p = pathFor(username);
+        Path legacy = legacyPathFor(username);
+        if (legacy != null && !Files.exists(p) && Files.exists(legacy)) {
+            Files.move(legacy, p);
+        }
+        if (Files.exists(p)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException eof) {
+                        break;
+                    }
+                    skipFully(in, length);
+                    box.add(4 + length);
+                }
+            } catch (EOFException truncated) {
+                // Último registro a medio escribir: se ignora
+            }
+        }
+        mailboxes.put(username, box);
+        return box;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    private static String readField(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String s) {
+        return (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.chat.server;
+
+import com.example.chat.data.AudioStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Subidas de audio por partes (beginAudioUpload / appendAudioChunk / commitAudioUpload).
+ * Cada chunk se escribe directo a un archivo .part, así la memoria por subida no
+ * depende del largo de la nota. Los chunks llevan número de secuencia: uno repetido
+ * se ignora y uno adelantado se rechaza devolviendo el esperado, lo que permite
+ * reanudar después de un corte.
+ */
+public class AudioUploadManager {
+
+    /** Subida terminada: el archivo ya está en AudioStore con el nombre fileName. */
+    public record Completed(String sender, String groupName, String fileName, long bytes) {}
+
+    private static final class Upload {
+        final String id;
+        final String sender;
+        final String groupName;
+        final String extension;
+        final Path part;
+        final ReentrantLock lock = new ReentrantLock();
+        FileChannel channel;
+        long nextSeq;
+        long bytes;
+        volatile long lastActivity = System.nanoTime();
+
+        Upload(String id, String sender, String groupName, String extension, Path part) {
+            this.id = id;
+            this.sender = sender;
+            this.groupName = groupName;
+            this.extension = extension;
+            this.part = part;
+        }
+    }
+
+    private final Path partDir;
+    private final long maxBytes;
+    private final long maxIdleNanos;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    private final LongAdder started = ServerMetrics.counter("upload.started");
+    private final LongAdder committed = ServerMetrics.counter("upload.committed");
+    private final LongAdder expired = ServerMetrics.counter("upload.expired");
+    private final LongAdder chunkBytes = ServerMetrics.counter("upload.bytes");
+
+    /**
+     * @param audioDir       carpeta de audios; las partes van en audioDir/.uploads
+     * @param maxBytes       tamaño máximo de una subida
+     * @param maxIdleSeconds una subida sin chunks por más de este tiempo se descarta
+     */
+    public AudioUploadManager(Path audioDir, long maxBytes, int maxIdleSeconds) {
+        this.partDir = audioDir.resolve(".uploads");
+        this.maxBytes = maxBytes;
+        this.maxIdleNanos = TimeUnit.SECONDS.toNanos(maxIdleSeconds);
+        ServerMetrics.gauge("upload.active", uploads::size);
+    }
+
+    public String begin(String sender, String groupName, String extension) throws IOException {
+        String id = UUID.randomUUID().toString();
+        Files.createDirectories(partDir);
+        Upload upload = new Upload(id, sender, groupName, extension, partDir.resolve(id + ".part"));
+        upload.channel = FileChannel.open(upload.part,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        uploads.put(id, upload);
+        started.increment();
+        return id;
+    }
+
+    /**
+     * Escribe el chunk seq si es el esperado. Devuelve el próximo seq esperado,
+     * o -1 si la subida no existe o pasó el tamaño máximo (en ese caso se descarta).
+     */
+    public long append(String uploadId, long seq, byte[] chunk) throws IOException {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) return -1;
+
+        upload.lock.lock();
+        try {
+            if (upload.channel == null) return -1;
+            upload.lastActivity = System.nanoTime();
+            if (seq != upload.nextSeq || chunk.length == 0) {
+                return upload.nextSeq;
+            }
+            if (upload.bytes + chunk.length > maxBytes) {
+                System.err.println("  [UPLOAD] " + uploadId + " supera " + maxBytes + " bytes, se descarta");
+                discard(upload);
+                return -1;
+            }
+
+            ByteBuffer buf = ByteBuffer.wrap(chunk);
+            while (buf.hasRemaining()) upload.channel.write(buf);
+            upload.bytes += chunk.length;
+            upload.nextSeq++;
+            chunkBytes.add(chunk.length);
+            return upload.nextSeq;
+        } finally {
+            upload.lock.unlock();
+        }
+    }
+
+    /**
+     * Cierra la subida y pasa el archivo a AudioStore. Devuelve null si la subida no existe.
+     * Si AudioStore falla la subida se descarta igual, con su .part.
+     */
+    public Completed commit(String uploadId) throws IOException {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) return null;
+
+        upload.lock.lock();
+        try {
+            if (upload.channel == null) return null;
+            upload.channel.force(false);
+            upload.channel.close();
+            upload.channel = null;
+
+            String fileName = upload.sender + "_" + System.currentTimeMillis() + upload.extension;
+            try {
+                AudioStore.storeFile(fileName, upload.part);
+            } catch (IOException | RuntimeException e) {
+                // Sin canal no se puede retomar: la parte se borra para no dejarla huérfana
+                uploads.remove(uploadId);
+                try {
+                    Files.deleteIfExists(upload.part);
+                } catch (IOException d) {
+                    e.addSuppressed(d);
+                }
+                throw e;
+            }
+            uploads.remove(uploadId);
+            committed.increment();
+            return new Completed(upload.sender, upload.groupName, fileName, upload.bytes);
+        } finally {
+            upload.lock.unlock();
+        }
+    }
+
+    /** Descarta las subidas sin actividad por más de maxIdleSeconds (lo llama LivenessReaper). */
+    public void expireIdle() {
+        long now = System.nanoTime();
+        for (Upload upload : uploads.values()) {
+            if (now - upload.lastActivity > maxIdleNanos && upload.lock.tryLock()) {
+                try {
+                    if (upload.channel != null) {
+                        System.out.println("  [UPLOAD] " + upload.id + " de " + upload.sender + " expiró");
+                        discard(upload);
+                        expired.increment();
+                    }
+                } finally {
+                    upload.lock.unlock();
+                }
+            }
+        }
+    }
+
+    // Llamar con el lock de la subida tomado
+    private void discard(Upload upload) {
+        uploads.remove(upload.id);
+        try {
+            upload.channel.close();
+            Files.deleteIfExists(upload.part);
+        } catch (IOException e) {
+            System.err.println("  [UPLOAD] Error borrando " + upload.part + ": " + e.getMessage());
+        }
+        upload.channel = null;
+    }
+}
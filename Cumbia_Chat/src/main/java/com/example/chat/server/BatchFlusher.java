@@ -0,0 +1,115 @@
+package com.example.chat.server;
+
+import com.zeroc.Ice.CompressBatch;
+import com.zeroc.Ice.Connection;
+import com.zeroc.Ice.ObjectPrx;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Vacía las colas de invocaciones batch-oneway de cada conexión.
+ * Los callbacks fijados a una conexión comparten la cola de esa conexión, así que
+ * se hace un flush por conexión cuando se junta maxMessages, cuando pasa maxDelay
+ * desde el primer mensaje pendiente, o cuando el fan-out queda ocioso.
+ */
+public class BatchFlusher {
+
+    private final int maxMessages;
+    private final long maxDelayMicros;
+    private final ScheduledExecutorService scheduler;
+    private final Map<Connection, Pending> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder flushes = ServerMetrics.counter("batch.flushes");
+    private final LongAdder flushedMessages = ServerMetrics.counter("batch.messages");
+    private final LongAdder flushLatencyMicros = ServerMetrics.counter("batch.latencyMicros");
+    private final LongAccumulator maxBatchSize = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxLatencyMicros = new LongAccumulator(Math::max, 0);
+
+    private static final class Pending {
+        final AtomicInteger count = new AtomicInteger();
+        volatile long firstQueuedNanos;
+    }
+
+    public BatchFlusher(int maxMessages, long maxDelayMicros) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxDelayMicros = Math.max(0, maxDelayMicros);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cumbia-batch-flush");
+            t.setDaemon(true);
+            return t;
+        });
+
+        ServerMetrics.gauge("batch.maxSize", maxBatchSize::get);
+        ServerMetrics.gauge("batch.maxLatencyMicros", maxLatencyMicros::get);
+        ServerMetrics.gauge("batch.connections", pending::size);
+    }
+
+    /**
+     * Registra que se encoló una invocación batch en el proxy (fijado a una conexión).
+     */
+    public void queued(ObjectPrx prx) {
+        Connection con;
+        try {
+            con = prx.ice_getConnection();
+        } catch (Exception e) {
+            return;
+        }
+        if (con == null) return;
+
+        Pending p = pending.computeIfAbsent(con, c -> new Pending());
+        int n = p.count.incrementAndGet();
+        if (n == 1) {
+            p.firstQueuedNanos = System.nanoTime();
+            scheduler.schedule(() -> flush(con, p), maxDelayMicros, TimeUnit.MICROSECONDS);
+        }
+        if (n >= maxMessages) {
+            flush(con, p);
+        }
+    }
+
+    /**
+     * La conexión se cerró: deja de seguirla. Sin esto cada conexión que se cierra
+     * normalmente quedaría referenciada para siempre.
+     */
+    public void forget(Connection con) {
+        pending.remove(con);
+    }
+
+    /**
+     * Vacía todas las conexiones con mensajes pendientes (el emisor está ocioso).
+     */
+    public void flushAll() {
+        pending.forEach(this::flush);
+    }
+
+    private void flush(Connection con, Pending p) {
+        int n = p.count.getAndSet(0);
+        if (n == 0) return;
+
+        long latency = (System.nanoTime() - p.firstQueuedNanos) / 1000;
+        flushes.increment();
+        flushedMessages.add(n);
+        flushLatencyMicros.add(latency);
+        maxBatchSize.accumulate(n);
+        maxLatencyMicros.accumulate(latency);
+
+        con.flushBatchRequestsAsync(CompressBatch.BasedOnProxy).whenComplete((r, ex) -> {
+            if (ex != null) {
+                System.err.println("  [BATCH] Error vaciando conexión: " + ex.getMessage());
+                pending.remove(con, p);
+            }
+        });
+    }
+
+    public void shutdown() {
+        flushAll();
+        scheduler.shutdownNow();
+    }
+}
@@ -1,44 +1,464 @@
 package com.example.chat.server;
 
+import com.zeroc.Ice.Communicator;
 import com.zeroc.Ice.Current;
+import com.zeroc.Ice.Properties;
 import com.example.chat.generated.CumbiaChat.*;
+import com.example.chat.core.ChatState;
+import com.example.chat.core.RateLimiter;
+import com.example.chat.data.AudioStore;
 import com.example.chat.data.HistorialManager;
-import com.example.chat.data.User;
-import com.example.chat.data.Group;
+import com.example.chat.data.OfflineInbox;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class ChatServiceI implements ChatService {
 
-    private static final Map<String, ChatCallbackPrx> connectedClients = new ConcurrentHashMap<>();
-    private static final Map<String, Group> groups = new ConcurrentHashMap<>();
-    private static final Map<String, Set<String>> groupMemberNames = new ConcurrentHashMap<>();
+    // getHistory devuelve la última página de este tamaño; getHistoryPage no pasa de MAX_PAGE
+    private static final int DEFAULT_HISTORY_LIMIT = 100;
+    private static final int MAX_PAGE = 500;
+    // Tope por defecto de un tramo de getAudio (por debajo de Ice.MessageSizeMax)
+    private static final int DEFAULT_AUDIO_SLICE = 512 * 1024;
+    // Al reproducir el buzón se vacía el batch de la conexión cada tantos mensajes
+    private static final int INBOX_FLUSH_EVERY = 256;
+    // Mensajes del buzón que se leen por vuelta (lo que queda en memoria a la vez)
+    private static final int INBOX_READ_MAX = 4096;
+
+    private static final Map<String, ClientSession> connectedClients = new ConcurrentHashMap<>();
+    // Usuarios, grupos y miembros, compartidos con el servidor TCP del mismo proceso.
+    // groupsOf(username) es el índice inverso: logout y login solo tocan esos rosters
+    private static final ChatState state = ChatState.shared();
+    // groupName -> snapshot de sesiones Ice en línea (ver GroupRoster); se crea al primer uso
+    private static final Map<String, GroupRoster> groups = new ConcurrentHashMap<>();
+
+    private final MessageFanout fanout;
+    // Solo existe si CumbiaChat.Batch.Enabled=1 (callbacks batch-oneway)
+    private final BatchFlusher batcher;
+    // I/O bloqueante fuera de los hilos de despacho de Ice. Los audios van aparte
+    // para que una ráfaga de subidas no frene el historial de texto.
+    private final ExecutorService historyIo;
+    private final ExecutorService audioIo;
+    // Pedidos que no entraron en la cola de historyIo / audioIo (el cliente recibe ServerBusy)
+    private final LongAdder ioRejected = ServerMetrics.counter("io.rejected");
+
+    // Límites de la cola de salida de cada sesión (ver OutboundQueue)
+    private final int outboundMaxMessages;
+    private final int outboundMaxBytes;
+    private final OutboundQueue.Policy outboundPolicy;
+
+    // Mensajes privados para usuarios desconectados; se entregan en el próximo login
+    private final OfflineInbox inbox;
+    private final LongAdder inboxStored = ServerMetrics.counter("inbox.stored");
+    private final LongAdder inboxReplayed = ServerMetrics.counter("inbox.replayed");
+
+    // Subidas de audio por partes en curso
+    private final AudioUploadManager uploads;
+    private final int maxAudioSlice;
+
+    // Versión y deltas de usuarios conectados (getPresenceDelta / subscribePresence)
+    private final PresenceService presence;
+
+    // Modo shard: dueño de cada usuario/grupo y proxies a los demás procesos (ver connectShards)
+    private final ShardRouter router;
+    private final Map<String, ShardPeerPrx> peers = new ConcurrentHashMap<>();
+    private final Map<String, ChatServicePrx> peerServices = new ConcurrentHashMap<>();
+    private final LongAdder forwarded = ServerMetrics.counter("shard.forwarded");
+    // Lo pone un shard en las llamadas que reenvía al dueño (ver connectShards): esas ya
+    // pagaron su cuota en el shard de entrada
+    static final String FORWARDED_CTX = "cumbia.forwarded";
+
+    // Desaloja sesiones de conexiones muertas y vence subidas abandonadas
+    private final LivenessReaper reaper;
+
+    // Cuota por remitente; el exceso se descarta y se cuenta (rate.rejected.*)
+    private final RateLimiter textLimit;
+    private final RateLimiter audioLimit;
+
+    public ChatServiceI(Properties props) {
+        this.outboundMaxMessages = props.getPropertyAsIntWithDefault("CumbiaChat.Outbound.MaxMessages", 1000);
+        this.outboundMaxBytes = props.getPropertyAsIntWithDefault("CumbiaChat.Outbound.MaxBytes", 1024 * 1024);
+        this.outboundPolicy = OutboundQueue.Policy.parse(
+                props.getPropertyWithDefault("CumbiaChat.Outbound.Policy", "drop-oldest"));
+        this.inbox = new OfflineInbox(Paths.get(props.getPropertyWithDefault("CumbiaChat.Inbox.Dir", "inbox")));
+        this.uploads = new AudioUploadManager(Paths.get("audios"),
+                props.getPropertyAsIntWithDefault("CumbiaChat.Upload.MaxBytes", 64 * 1024 * 1024),
+                props.getPropertyAsIntWithDefault("CumbiaChat.Upload.IdleSeconds", 300));
+        this.maxAudioSlice = props.getPropertyAsIntWithDefault("CumbiaChat.Audio.MaxSlice", DEFAULT_AUDIO_SLICE);
+        this.presence = new PresenceService(
+                props.getPropertyAsIntWithDefault("CumbiaChat.Presence.LogSize", 10000),
+                props.getPropertyAsIntWithDefault("CumbiaChat.Presence.IntervalMillis", 500));
+        this.router = ShardRouter.fromProperties(props);
+        this.textLimit = new RateLimiter(
+                props.getPropertyAsIntWithDefault("CumbiaChat.Rate.Text", 0),
+                props.getPropertyAsIntWithDefault("CumbiaChat.Rate.Text.Burst", 20));
+        this.audioLimit = new RateLimiter(
+                props.getPropertyAsIntWithDefault("CumbiaChat.Rate.Audio", 0),
+                props.getPropertyAsIntWithDefault("CumbiaChat.Rate.Audio.Burst", 3));
+        ServerMetrics.gauge("rate.rejected.text", textLimit::rejected);
+        ServerMetrics.gauge("rate.rejected.audio", audioLimit::rejected);
+
+        // Los cambios pueden venir de cualquiera de los dos frontends; se vuelve a mirar
+        // el estado porque los avisos pueden llegar desordenados (ver ChatState)
+        state.addListener(new ChatState.Listener() {
+            @Override public void userOnline(String username) {
+                if (state.isOnline(username)) presence.online(username);
+            }
+            @Override public void userOffline(String username) {
+                if (!state.isOnline(username)) presence.offline(username);
+            }
+            @Override public void joined(String groupName, String username) {
+                GroupRoster roster = roster(groupName);
+                if (roster != null) roster.join(username, connectedClients::get);
+            }
+            @Override public void left(String groupName, String username) {
+                GroupRoster roster = groups.get(groupName);
+                if (roster != null) roster.leave(username);
+            }
+        });
+
+        if (props.getPropertyAsIntWithDefault("CumbiaChat.Batch.Enabled", 0) > 0) {
+            int maxMessages = props.getPropertyAsIntWithDefault("CumbiaChat.Batch.MaxMessages", 64);
+            int maxDelayMicros = props.getPropertyAsIntWithDefault("CumbiaChat.Batch.MaxDelayMicros", 2000);
+            this.batcher = new BatchFlusher(maxMessages, maxDelayMicros);
+        } else {
+            this.batcher = null;
+        }
+
+        int threads = props.getPropertyAsIntWithDefault("CumbiaChat.Fanout.Threads",
+                Runtime.getRuntime().availableProcessors());
+        int queueSize = props.getPropertyAsIntWithDefault("CumbiaChat.Fanout.QueueSize", 10000);
+        this.fanout = new MessageFanout(threads, queueSize, connectedClients::get,
+                this::dropSession, batcher);
+
+        this.reaper = new LivenessReaper(connectedClients::values, this::evictSession, uploads::expireIdle,
+                batcher != null ? batcher::forget : con -> {},
+                props.getPropertyAsIntWithDefault("CumbiaChat.Reaper.IntervalSeconds", 5),
+                props.getPropertyAsIntWithDefault("CumbiaChat.Liveness.Timeout", 30),
+                props.getPropertyAsIntWithDefault("CumbiaChat.Liveness.CloseIdle", 0) > 0);
+
+        if (Server.useVirtualThreads(props)) {
+            // Con despacho virtual el I/O también va en hilos virtuales: no hay pool que dimensionar
+            this.historyIo = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("cumbia-history-io-", 0).factory());
+            this.audioIo = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("cumbia-audio-io-", 0).factory());
+        } else {
+            int ioQueue = props.getPropertyAsIntWithDefault("CumbiaChat.IO.QueueSize", 10000);
+            this.historyIo = newIoPool("cumbia-history-io",
+                    props.getPropertyAsIntWithDefault("CumbiaChat.IO.HistoryThreads", 4), ioQueue);
+            this.audioIo = newIoPool("cumbia-audio-io",
+                    props.getPropertyAsIntWithDefault("CumbiaChat.IO.AudioThreads", 4), ioQueue);
+        }
+    }
+
+    private static ExecutorService newIoPool(String name, int threads, int queueSize) {
+        AtomicInteger seq = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread t = new Thread(r, name + "-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    // Con la cola llena supplyAsync tira RejectedExecutionException en el hilo de Ice;
+    // se devuelve como ServerBusy para que el cliente sepa que puede reintentar
+    private <T> CompletionStage<T> onIo(ExecutorService pool, Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, pool);
+        } catch (RejectedExecutionException e) {
+            ioRejected.increment();
+            return CompletableFuture.failedFuture(new ServerBusy(pool == audioIo ? "audio" : "historial"));
+        }
+    }
+
+    private CompletionStage<Void> runIo(ExecutorService pool, Runnable work) {
+        return onIo(pool, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    public void shutdown() {
+        historyIo.shutdown();
+        audioIo.shutdown();
+        fanout.shutdown();
+        presence.shutdown();
+        reaper.shutdown();
+        if (batcher != null) batcher.shutdown();
+    }
+
+    /**
+     * Profundidad de cola y descartes de las sesiones que tienen algo que reportar.
+     */
+    public String outboundReport() {
+        StringBuilder sb = new StringBuilder();
+        for (ClientSession session : connectedClients.values()) {
+            OutboundQueue q = session.getOutbound();
+            if (q.depth() > 0 || q.drops() > 0) {
+                sb.append("[OUTBOUND] ").append(session.getUsername())
+                        .append(" depth=").append(q.depth())
+                        .append(" drops=").append(q.drops())
+                        .append(System.lineSeparator());
+            }
+        }
+        return sb.toString();
+    }
+
+    public ShardRouter router() {
+        return router;
+    }
+
+    /**
+     * Crea los proxies hacia los otros shards. Llamar antes de activar el adaptador;
+     * las conexiones se abren recién con la primera llamada.
+     */
+    public void connectShards(Communicator communicator) {
+        for (String id : router.shardIds()) {
+            if (id.equals(router.localId())) continue;
+            String endpoints = router.endpointsOf(id);
+            peers.put(id, ShardPeerPrx.uncheckedCast(communicator.stringToProxy("ShardPeer:" + endpoints)));
+            peerServices.put(id, ChatServicePrx.uncheckedCast(communicator.stringToProxy("ChatService:" + endpoints))
+                    .ice_context(Map.of(FORWARDED_CTX, router.localId())));
+        }
+    }
+
+    private ChatServicePrx ownerService(String key) {
+        forwarded.increment();
+        return peerServices.get(router.ownerOf(key));
+    }
+
+    // La cuota se cobra en el shard donde entra la llamada, sea o no el dueño del
+    // remitente; solo se saltea lo que otro shard reenvía (y solo con sharding activo)
+    private boolean admit(RateLimiter limit, String sender, Current current) {
+        if (isForwarded(current) || limit.tryAcquire(sender)) return true;
+        System.out.println("[RATE] Mensaje de " + sender + " descartado por exceso de envíos");
+        return false;
+    }
+
+    private boolean isForwarded(Current current) {
+        if (!router.enabled() || current == null || current.ctx == null) return false;
+        String from = current.ctx.get(FORWARDED_CTX);
+        return from != null && !from.equals(router.localId()) && router.endpointsOf(from) != null;
+    }
+
+    // Falló la entrega a esta sesión: se saca solo si sigue siendo la registrada
+    private void dropSession(ClientSession session) {
+        if (connectedClients.remove(session.getUsername(), session)) {
+            forEachJoinedGroup(session.getUsername(), roster -> roster.offline(session));
+            state.offline(session.getUsername(), ChatState.Frontend.ICE);
+        }
+    }
+
+    // El reaper encontró la conexión cerrada: igual que un fallo de entrega
+    private void evictSession(ClientSession session) {
+        session.getOutbound().close();
+        dropSession(session);
+    }
+
+    private void forEachJoinedGroup(String username, Consumer<GroupRoster> action) {
+        for (String groupName : state.groupsOf(username)) {
+            GroupRoster roster = roster(groupName);
+            if (roster != null) action.accept(roster);
+        }
+    }
+
+    // Roster del grupo, creado al primer uso (el grupo pudo crearse por TCP); null si no existe
+    private GroupRoster roster(String groupName) {
+        GroupRoster roster = groups.get(groupName);
+        if (roster != null || !state.groupExists(groupName)) return roster;
+        return groups.computeIfAbsent(groupName, name -> new GroupRoster(name, state));
+    }
+
+    // ---------- Despacho AMD ----------
+    // Las operaciones en memoria se completan en el mismo hilo de Ice; las que tocan
+    // disco (historial, buzón y audios) se completan desde historyIo / audioIo.
+
+    @Override
+    public CompletionStage<Boolean> loginAsync(String username, String password, ChatCallbackPrx cb, Current current) {
+        if (!router.isLocal(username)) {
+            System.out.println("[LOGIN] " + username + " pertenece al shard " + router.ownerOf(username) + ", usar locateUser");
+            return CompletableFuture.completedFuture(false);
+        }
+        // El login puede reproducir el buzón desde disco
+        return onIo(historyIo, () -> login(username, password, cb, current));
+    }
+
+    @Override
+    public CompletionStage<String> locateUserAsync(String username, Current current) {
+        String owner = router.ownerOf(username);
+        return CompletableFuture.completedFuture(router.enabled() ? "ChatService:" + router.endpointsOf(owner) : "");
+    }
+
+    @Override
+    public CompletionStage<Void> logoutAsync(String username, Current current) {
+        logout(username, current);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletionStage<String[]> getConnectedUsersAsync(Current current) {
+        String[] local = getConnectedUsers(current);
+        if (!router.enabled()) return CompletableFuture.completedFuture(local);
+        return gatherFromPeers(local, ShardPeerPrx::localUsersAsync);
+    }
+
+    @Override
+    public CompletionStage<PresenceDelta> getPresenceDeltaAsync(long sinceVersion, Current current) {
+        return CompletableFuture.completedFuture(presence.delta(sinceVersion));
+    }
+
+    @Override
+    public CompletionStage<PresenceDelta> subscribePresenceAsync(PresenceCallbackPrx cb, long sinceVersion, Current current) {
+        return CompletableFuture.completedFuture(subscribePresence(cb, sinceVersion, current));
+    }
+
+    @Override
+    public CompletionStage<Void> unsubscribePresenceAsync(PresenceCallbackPrx cb, Current current) {
+        if (cb != null) presence.unsubscribe(cb.ice_getIdentity());
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletionStage<Void> createGroupAsync(String groupName, String creator, Current current) {
+        if (!router.isLocal(groupName)) {
+            return ownerService(groupName).createGroupAsync(groupName, creator);
+        }
+        createGroup(groupName, creator, current);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletionStage<String[]> getGroupsAsync(Current current) {
+        String[] local = getGroups(current);
+        if (!router.enabled()) return CompletableFuture.completedFuture(local);
+        return gatherFromPeers(local, ShardPeerPrx::localGroupsAsync);
+    }
+
+    @Override
+    public CompletionStage<Boolean> joinGroupAsync(String groupName, String username, Current current) {
+        if (!router.isLocal(groupName)) {
+            return joinRemoteGroup(groupName, username);
+        }
+        return CompletableFuture.completedFuture(joinGroup(groupName, username, current));
+    }
+
+    @Override
+    public CompletionStage<String[]> getUserGroupsAsync(String username, Current current) {
+        if (!router.isLocal(username)) {
+            return ownerService(username).getUserGroupsAsync(username);
+        }
+        return CompletableFuture.completedFuture(getUserGroups(username, current));
+    }
+
+    @Override
+    public CompletionStage<Void> sendMessageAsync(String content, String sender, String groupName, String type, Current current) {
+        if (!admit("AUDIO".equals(type) ? audioLimit : textLimit, sender, current)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return runIo(historyIo, () -> sendMessage(content, sender, groupName, type, current));
+    }
+
+    @Override
+    public CompletionStage<Void> sendAudioAsync(byte[] data, String sender, String groupName, String fileExtension, Current current) {
+        if (!admit(audioLimit, sender, current)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return runIo(audioIo, () -> sendAudio(data, sender, groupName, fileExtension, current));
+    }
+
+    @Override
+    public CompletionStage<String> beginAudioUploadAsync(String sender, String groupName, String fileExtension, Current current) {
+        // La cuota de audio se cobra al abrir la subida; los chunks y el commit no cuentan
+        if (!admit(audioLimit, sender, current)) {
+            return CompletableFuture.completedFuture("");
+        }
+        return onIo(audioIo, () -> beginAudioUpload(sender, groupName, fileExtension, current));
+    }
+
+    @Override
+    public CompletionStage<Long> appendAudioChunkAsync(String uploadId, long seq, byte[] chunk, Current current) {
+        return onIo(audioIo, () -> appendAudioChunk(uploadId, seq, chunk, current));
+    }
+
+    @Override
+    public CompletionStage<String> commitAudioUploadAsync(String uploadId, Current current) {
+        return onIo(audioIo, () -> commitAudioUpload(uploadId, current));
+    }
 
     @Override
-    public boolean login(String username, String password, ChatCallbackPrx cb, Current current) {
+    public CompletionStage<AudioInfo> getAudioInfoAsync(String fileId, Current current) {
+        return onIo(audioIo, () -> getAudioInfo(fileId, current));
+    }
+
+    @Override
+    public CompletionStage<ByteBuffer> getAudioAsync(String fileId, long offset, int length, Current current) {
+        return onIo(audioIo, () -> getAudio(fileId, offset, length, current));
+    }
+
+    @Override
+    public CompletionStage<Message[]> getHistoryAsync(String groupName, Current current) {
+        // El historial de un chat lo escribe el shard dueño de su nombre
+        if (!router.isLocal(groupName)) {
+            return ownerService(groupName).getHistoryAsync(groupName);
+        }
+        return onIo(historyIo, () -> getHistory(groupName, current));
+    }
+
+    @Override
+    public CompletionStage<HistoryPage> getHistoryPageAsync(String chat, long beforeSeq, int limit, Current current) {
+        if (!router.isLocal(chat)) {
+            return ownerService(chat).getHistoryPageAsync(chat, beforeSeq, limit);
+        }
+        return onIo(historyIo, () -> getHistoryPage(chat, beforeSeq, limit, current));
+    }
+
+    // ---------- Implementación ----------
+
+    private boolean login(String username, String password, ChatCallbackPrx cb, Current current) {
         System.out.println("\n[LOGIN] ========================================");
         System.out.println("  Usuario: " + username);
         System.out.println("  Callback: " + (cb != null ? "Recibido" : "NULL"));
         
         try {
-            if (connectedClients.containsKey(username)) {
-                System.out.println("  Usuario ya conectado - removiendo anterior");
-                connectedClients.remove(username);
-            }
-
             if (cb != null) {
                 ChatCallbackPrx fixedCallback = cb.ice_fixed(current.con);
-                // Convertir a oneway para que no bloquee
-                ChatCallbackPrx onewayCallback = fixedCallback.ice_oneway();
-                System.out.println("  Callback fijado y convertido a oneway");
+                // Convertir a oneway para que no bloquee; en modo batch las entregas
+                // se acumulan en la conexión hasta que BatchFlusher las vacía
+                ChatCallbackPrx onewayCallback = batcher != null
+                        ? fixedCallback.ice_batchOneway()
+                        : fixedCallback.ice_oneway();
+                System.out.println("  Callback fijado y convertido a " + (batcher != null ? "batch-oneway" : "oneway"));
                 System.out.println("  Callback proxy: " + onewayCallback.toString());
                 
-                connectedClients.put(username, onewayCallback);
+                ClientSession session = new ClientSession(username, onewayCallback, current.con,
+                        new OutboundQueue(outboundMaxMessages, outboundMaxBytes, outboundPolicy));
+                reaper.watch(current.con);
+
+                registerAfterInbox(session, fixedCallback);
                 System.out.println("  Usuario registrado");
                 System.out.println("  Total conectados: " + connectedClients.size());
                 System.out.println("  Clientes: " + connectedClients.keySet());
@@ -57,34 +477,107 @@ public class ChatServiceI implements ChatService {
         }
     }
 
-    @Override
-    public void logout(String username, Current current) {
+    /**
+     * Entrega el buzón pendiente por batch-oneway y recién con el buzón vacío registra la
+     * sesión. Cada tanda se lee con el lock del usuario y se envía sin él: los privados que
+     * lleguen mientras tanto van al buzón y salen en la vuelta siguiente, así el orden se
+     * mantiene sin bloquear a los remitentes durante el envío.
+     */
+    private void registerAfterInbox(ClientSession session, ChatCallbackPrx fixedCallback) {
+        String username = session.getUsername();
+        ReentrantLock lock = inbox.lockFor(username);
+        ChatCallbackPrx batch = fixedCallback.ice_batchOneway();
+        int replayed = 0;
+        boolean deliver = true;
+        while (true) {
+            OfflineInbox.Batch pending = OfflineInbox.Batch.EMPTY;
+            lock.lock();
+            try {
+                if (deliver) pending = readInbox(username);
+                if (pending.isEmpty()) {
+                    register(session);
+                    break;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                int queued = 0;
+                for (OfflineInbox.InboxMessage m : pending.messages()) {
+                    batch.receiveMessage(new Message(m.sender(), m.content(), m.type(), m.date()), m.chatName());
+                    if (++queued % INBOX_FLUSH_EVERY == 0) batch.ice_flushBatchRequests();
+                }
+                batch.ice_flushBatchRequests();
+                inbox.ack(username, pending);
+                replayed += pending.messages().size();
+            } catch (Exception e) {
+                // Lo no confirmado queda en disco y se reintenta en el próximo login
+                System.err.println("  Error entregando buzón de " + username + ": " + e.getMessage());
+                deliver = false;
+            }
+        }
+        if (replayed > 0) {
+            inboxReplayed.add(replayed);
+            System.out.println("  Buzón entregado: " + replayed + " mensaje(s)");
+        }
+    }
+
+    private OfflineInbox.Batch readInbox(String username) {
+        try {
+            return inbox.read(username, INBOX_READ_MAX);
+        } catch (IOException e) {
+            System.err.println("  Error leyendo buzón de " + username + ": " + e.getMessage());
+            return OfflineInbox.Batch.EMPTY;
+        }
+    }
+
+    // Con el lock del buzón del usuario tomado
+    private void register(ClientSession session) {
+        String username = session.getUsername();
+        ClientSession previous = connectedClients.put(username, session);
+        if (previous != null) {
+            System.out.println("  Usuario ya conectado - reemplazando sesión anterior");
+        }
+        // La sesión nueva reemplaza a la anterior en los grupos donde es miembro
+        forEachJoinedGroup(username, roster -> roster.online(session));
+        state.online(username, ChatState.Frontend.ICE);
+    }
+
+    private void logout(String username, Current current) {
         System.out.println("[LOGOUT] " + username);
-        connectedClients.remove(username);
-        for (Set<String> members : groupMemberNames.values()) {
-            members.remove(username);
+        if (connectedClients.remove(username) != null) state.offline(username, ChatState.Frontend.ICE);
+        // Como siempre en Ice, el logout saca al usuario de sus grupos (también de los unidos por TCP)
+        for (String groupName : state.leaveAll(username)) {
+            if (router.isLocal(groupName)) continue;
+            ShardPeerPrx owner = peers.get(router.ownerOf(groupName));
+            owner.removeMemberAsync(groupName, username).whenComplete((r, ex) -> {
+                if (ex != null) System.err.println("  [SHARD] removeMember " + groupName + ": " + ex);
+            });
         }
         System.out.println("  Usuario removido. Total conectados: " + connectedClients.size());
     }
 
-    @Override
-    public String[] getConnectedUsers(Current current) {
+    // Conectados por Ice o por TCP
+    private String[] getConnectedUsers(Current current) {
         System.out.println("[GET_CONNECTED_USERS] Solicitando lista de usuarios");
-        String[] result = connectedClients.keySet().toArray(new String[0]);
+        String[] result = state.users().toArray(new String[0]);
         System.out.println("  Retornando " + result.length + " usuario(s): " + String.join(", ", result));
         return result;
     }
 
-    @Override
-    public void createGroup(String groupName, String creator, Current current) {
+    private PresenceDelta subscribePresence(PresenceCallbackPrx cb, long sinceVersion, Current current) {
+        System.out.println("[SUBSCRIBE_PRESENCE] desde versión " + sinceVersion);
+        if (cb == null) return presence.delta(sinceVersion);
+        // Igual que en login: el callback viaja por la conexión que abrió el cliente
+        return presence.subscribe(cb.ice_fixed(current.con).ice_oneway(), sinceVersion);
+    }
+
+    private void createGroup(String groupName, String creator, Current current) {
         System.out.println("[CREATE_GROUP] " + groupName + " por " + creator);
         
         try {
-            if (!groups.containsKey(groupName)) {
-                Group newGroup = new Group(groupName, null);
-                groups.put(groupName, newGroup);
-                groupMemberNames.put(groupName, ConcurrentHashMap.newKeySet());
-                System.out.println("  Grupo creado. Total grupos: " + groups.size());
+            if (state.createGroup(groupName)) {
+                System.out.println("  Grupo creado. Total grupos: " + state.groups().size());
             } else {
                 System.out.println("  Grupo ya existe");
             }
@@ -94,27 +587,21 @@ public class ChatServiceI implements ChatService {
         }
     }
 
-    @Override
-    public String[] getGroups(Current current) {
+    private String[] getGroups(Current current) {
         System.out.println("[GET_GROUPS] Solicitando lista de grupos");
-        String[] result = groups.keySet().toArray(new String[0]);
+        String[] result = state.groups().toArray(new String[0]);
         System.out.println("  Retornando " + result.length + " grupo(s)");
         return result;
     }
 
-    @Override
-    public boolean joinGroup(String groupName, String username, Current current) {
+    private boolean joinGroup(String groupName, String username, Current current) {
         System.out.println("[JOIN_GROUP] " + username + " -> " + groupName);
         
         try {
-            if (groups.containsKey(groupName)) {
-                Set<String> members = groupMemberNames.get(groupName);
-                if (members == null) {
-                    members = ConcurrentHashMap.newKeySet();
-                    groupMemberNames.put(groupName, members);
-                }
-                members.add(username);
-                System.out.println("  Usuario agregado. Miembros actuales: " + members);
+            // ChatState escribe primero el índice inverso y el listener suma la sesión al
+            // roster: si llega un login en paralelo, o ve el grupo o el roster la encuentra
+            if (state.join(groupName, username)) {
+                System.out.println("  Usuario agregado. Miembros actuales: " + state.memberCount(groupName));
                 return true;
             } else {
                 System.out.println("  Grupo no existe");
@@ -126,14 +613,25 @@ public class ChatServiceI implements ChatService {
         }
     }
 
-    @Override
-    public void sendMessage(String content, String sender, String target, String type, Current current) {
+    private String[] getUserGroups(String username, Current current) {
+        System.out.println("[GET_USER_GROUPS] " + username);
+        return state.groupsOf(username).toArray(new String[0]);
+    }
+
+    private void sendMessage(String content, String sender, String target, String type, Current current) {
         String preview = content.length() > 30 ? content.substring(0, 30) + "..." : content;
         System.out.println("[SEND_MESSAGE] " + sender + " -> " + target + ": " + preview);
+
+        // Un nombre, sea grupo o usuario, tiene un solo shard dueño: ahí se guarda y se reparte
+        if (!router.isLocal(target)) {
+            ownerService(target).sendMessageAsync(content, sender, target, type).whenComplete((r, ex) -> {
+                if (ex != null) System.err.println("  [SHARD] Error reenviando a " + router.ownerOf(target) + ": " + ex);
+            });
+            return;
+        }
         
         try {
             HistorialManager.registrarMensajeTexto(sender, target, content);
-            System.out.println("  Guardado en historial");
 
             Message msg = new Message();
             msg.sender = sender;
@@ -141,79 +639,55 @@ public class ChatServiceI implements ChatService {
             msg.type = type;
             msg.date = new java.util.Date().toString();
 
-            Set<String> members = groupMemberNames.get(target);
+            GroupRoster roster = roster(target);
             
-            if (members != null && !members.isEmpty()) {
-                System.out.println("  [GRUPO] Miembros: " + members);
-                int sent = 0;
-                int failed = 0;
-                
-                for (String memberName : members) {
-                    if (memberName.equals(sender)) {
-                        continue;
-                    }
-                    
-                    ChatCallbackPrx clientPrx = connectedClients.get(memberName);
-                    System.out.println("  Enviando a: " + memberName + " (proxy: " + (clientPrx != null ? "OK" : "NULL") + ")");
-                    
-                    if (clientPrx != null) {
-                        try {
-                            clientPrx.receiveMessage(msg, target);
-                            sent++;
-                            System.out.println("    ENVIADO OK -> " + memberName);
-                        } catch (Exception e) {
-                            System.err.println("    FALLO -> " + memberName + ": " + e.getClass().getName() + " - " + e.getMessage());
-                            connectedClients.remove(memberName);
-                            failed++;
-                        }
-                    }
-                }
-                System.out.println("  Resultado: Enviados=" + sent + " Fallidos=" + failed);
-            } else {
-                ChatCallbackPrx targetPrx = connectedClients.get(target);
-                System.out.println("  [PRIVADO] Target: " + target);
-                System.out.println("  [PRIVADO] Proxy encontrado: " + (targetPrx != null ? "SI" : "NO"));
-                
-                if (targetPrx != null) {
-                    try {
-                        targetPrx.receiveMessage(msg, sender);
-                        System.out.println("  [PRIVADO] ENVIADO OK -> " + target);
-                    } catch (Exception e) {
-                        System.err.println("  [PRIVADO] ERROR: " + e.getClass().getName() + " - " + e.getMessage());
-                        connectedClients.remove(target);
-                    }
-                } else {
-                    System.out.println("  [PRIVADO] Usuario " + target + " no conectado");
+            if (roster != null && roster.memberCount() > 0) {
+                // La entrega corre en el pool de fan-out; el hilo de Ice queda libre
+                ClientSession[] online = roster.snapshot();
+                System.out.println("  [GRUPO] " + online.length + " en línea, entrega en segundo plano");
+                fanout.publishToGroup(msg, target, sender, online);
+                if (router.enabled()) {
+                    roster.remoteMembers(router).forEach((shard, names) ->
+                            peers.get(shard).deliverGroupAsync(target, msg, names).whenComplete((r, ex) -> {
+                                if (ex != null) System.err.println("  [SHARD] Error entregando a " + shard + ": " + ex);
+                            }));
                 }
+            } else if (roster == null) {
+                sendPrivate(msg, sender, target);
             }
             
-            System.out.println("[SEND_MESSAGE] Fin");
-            
         } catch (Exception e) {
             System.err.println("  Error general: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
-    @Override
-    public void sendAudio(byte[] data, String sender, String groupName, String fileExtension, Current current) {
+    // Entrega en vivo o guarda en el buzón, bajo el lock del destinatario (ver login)
+    private void sendPrivate(Message msg, String sender, String target) throws IOException {
+        ReentrantLock lock = inbox.lockFor(target);
+        lock.lock();
+        try {
+            ClientSession session = connectedClients.get(target);
+            if (session != null) {
+                fanout.publishPrivate(msg, sender, session);
+            } else {
+                inbox.store(target, new OfflineInbox.InboxMessage(sender, sender, msg.content, msg.type, msg.date));
+                inboxStored.increment();
+                System.out.println("  [PRIVADO] Usuario " + target + " no conectado, guardado en su buzón");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sendAudio(byte[] data, String sender, String groupName, String fileExtension, Current current) {
         System.out.println("[SEND_AUDIO] " + sender + " -> " + groupName + " (" + data.length + " bytes)");
         
         try {
             String fileName = sender + "_" + System.currentTimeMillis() + fileExtension;
-            File audioDir = new File("audios");
-            if (!audioDir.exists()) audioDir.mkdirs();
+            AudioStore.store(fileName, data);
             
-            File outFile = new File(audioDir, fileName);
-            
-            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                fos.write(data);
-            }
-            
-            HistorialManager.registrarAudio(sender, groupName, fileName);
-            System.out.println("  Audio guardado: " + fileName);
-            
-            sendMessage(fileName, sender, groupName, "AUDIO", current);
+            publishAudio(sender, groupName, fileName, current);
             
         } catch (IOException e) {
             System.err.println("  Error guardando audio: " + e.getMessage());
@@ -221,9 +695,177 @@ public class ChatServiceI implements ChatService {
         }
     }
 
-    @Override
-    public Message[] getHistory(String groupName, Current current) {
+    // Audio ya guardado en AudioStore (sendAudio o una subida): la línea AUDIO va al
+    // historial del shard dueño del chat y el aviso sale como cualquier mensaje
+    private void publishAudio(String sender, String groupName, String fileName, Current current) {
+        System.out.println("  Audio guardado: " + fileName);
+        if (router.isLocal(groupName)) {
+            HistorialManager.registrarAudio(sender, groupName, fileName);
+        } else {
+            peers.get(router.ownerOf(groupName)).recordAudioAsync(sender, groupName, fileName).whenComplete((r, ex) -> {
+                if (ex != null) System.err.println("  [SHARD] recordAudio " + groupName + ": " + ex);
+            });
+        }
+
+        sendMessage(fileName, sender, groupName, "AUDIO", current);
+    }
+
+    private String beginAudioUpload(String sender, String groupName, String fileExtension, Current current) {
+        System.out.println("[BEGIN_AUDIO_UPLOAD] " + sender + " -> " + groupName);
+        try {
+            String uploadId = uploads.begin(sender, groupName, fileExtension);
+            System.out.println("  Subida iniciada: " + uploadId);
+            return uploadId;
+        } catch (IOException e) {
+            System.err.println("  Error iniciando subida: " + e.getMessage());
+            return "";
+        }
+    }
+
+    private long appendAudioChunk(String uploadId, long seq, byte[] chunk, Current current) {
+        try {
+            return uploads.append(uploadId, seq, chunk);
+        } catch (IOException e) {
+            System.err.println("  [UPLOAD] Error escribiendo chunk " + seq + " de " + uploadId + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private String commitAudioUpload(String uploadId, Current current) {
+        System.out.println("[COMMIT_AUDIO_UPLOAD] " + uploadId);
+        try {
+            AudioUploadManager.Completed done = uploads.commit(uploadId);
+            if (done == null) {
+                System.out.println("  Subida no existe");
+                return "";
+            }
+            System.out.println("  " + done.bytes() + " bytes recibidos");
+            publishAudio(done.sender(), done.groupName(), done.fileName(), current);
+            return done.fileName();
+        } catch (IOException e) {
+            System.err.println("  Error cerrando subida: " + e.getMessage());
+            return "";
+        }
+    }
+
+    private AudioInfo getAudioInfo(String fileId, Current current) {
+        System.out.println("[GET_AUDIO_INFO] " + fileId);
+        try {
+            AudioStore.AudioMeta meta = AudioStore.meta(fileId);
+            if (meta != null) return new AudioInfo(meta.size(), meta.durationMillis(), meta.format());
+
+            // Audio anterior al almacén: solo se conoce el tamaño
+            Path legacy = AudioStore.resolve(fileId);
+            if (legacy != null) return new AudioInfo(Files.size(legacy), -1, "");
+        } catch (IOException e) {
+            System.err.println("  Error leyendo audio: " + e.getMessage());
+        }
+        return new AudioInfo(-1, -1, "");
+    }
+
+    private ByteBuffer getAudio(String fileId, long offset, int length, Current current) {
+        try {
+            ByteBuffer slice = AudioStore.read(fileId, offset, Math.min(length, maxAudioSlice));
+            if (slice == null) {
+                System.out.println("[GET_AUDIO] " + fileId + " no existe");
+                return ByteBuffer.allocate(0);
+            }
+            return slice;
+        } catch (IOException e) {
+            System.err.println("[GET_AUDIO] Error leyendo " + fileId + ": " + e.getMessage());
+            return ByteBuffer.allocate(0);
+        }
+    }
+
+    private Message[] getHistory(String groupName, Current current) {
         System.out.println("[GET_HISTORY] " + groupName);
-        return new Message[]{};
+        return getHistoryPage(groupName, -1, DEFAULT_HISTORY_LIMIT, current).messages;
+    }
+
+    private HistoryPage getHistoryPage(String chat, long beforeSeq, int limit, Current current) {
+        System.out.println("[GET_HISTORY_PAGE] " + chat + " antes de " + beforeSeq + " (" + limit + ")");
+        HistoryPage result = new HistoryPage(new Message[0], 0, false);
+
+        try {
+            HistorialManager.HistorialPage page = HistorialManager.leerPagina(chat, beforeSeq,
+                    Math.min(Math.max(limit, 0), MAX_PAGE));
+            List<String> lines = page.lines();
+
+            Message[] messages = new Message[lines.size()];
+            for (int i = 0; i < messages.length; i++) {
+                HistorialManager.HistorialEntry entry = HistorialManager.parseLine(lines.get(i));
+                messages[i] = new Message(entry.sender(), entry.content(), entry.type(), entry.date());
+            }
+            result.messages = messages;
+            result.nextBeforeSeq = page.firstSeq();
+            result.hasMore = page.firstSeq() > 0;
+        } catch (IOException e) {
+            System.err.println("  Error leyendo historial: " + e.getMessage());
+        }
+        return result;
+    }
+
+    // ---------- Modo shard ----------
+
+    // Une la respuesta local con la de cada shard; un shard caído no hace fallar la consulta
+    private CompletionStage<String[]> gatherFromPeers(String[] local,
+                                                      Function<ShardPeerPrx, CompletableFuture<String[]>> call) {
+        List<CompletableFuture<String[]>> parts = new ArrayList<>();
+        for (Map.Entry<String, ShardPeerPrx> e : peers.entrySet()) {
+            parts.add(call.apply(e.getValue()).exceptionally(ex -> {
+                System.err.println("  [SHARD] " + e.getKey() + " no responde: " + ex);
+                return new String[0];
+            }));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            Set<String> all = new LinkedHashSet<>(List.of(local));
+            for (CompletableFuture<String[]> part : parts) all.addAll(List.of(part.join()));
+            return all.toArray(new String[0]);
+        });
+    }
+
+    private CompletionStage<Boolean> joinRemoteGroup(String groupName, String username) {
+        System.out.println("[JOIN_GROUP] " + username + " -> " + groupName + " (shard " + router.ownerOf(groupName) + ")");
+        return peers.get(router.ownerOf(groupName)).addMemberAsync(groupName, username).thenApply(ok -> {
+            // El índice inverso vive en el shard del usuario, para su logout
+            if (ok && router.isLocal(username)) state.joinElsewhere(groupName, username);
+            return ok;
+        });
+    }
+
+    /** ShardPeer.deliverGroup: entrega a los recipients conectados aquí. */
+    void deliverGroupLocal(String groupName, Message msg, String[] recipients) {
+        List<ClientSession> sessions = new ArrayList<>(recipients.length);
+        for (String username : recipients) {
+            ClientSession session = connectedClients.get(username);
+            if (session != null) sessions.add(session);
+        }
+        if (!sessions.isEmpty()) {
+            fanout.publishToGroup(msg, groupName, msg.sender, sessions.toArray(new ClientSession[0]));
+        }
+    }
+
+    /** ShardPeer.addMember: el grupo es de este shard, el usuario puede estar en otro. */
+    boolean addMemberLocal(String groupName, String username) {
+        if (!state.join(groupName, username)) return false;
+        System.out.println("[SHARD] " + username + " agregado a " + groupName + ". Miembros: " + state.memberCount(groupName));
+        return true;
+    }
+
+    void removeMemberLocal(String groupName, String username) {
+        state.leave(groupName, username);
+    }
+
+    /** ShardPeer.recordAudio: el audio se guardó en otro shard y el chat es de este. */
+    CompletionStage<Void> recordAudioLocal(String sender, String chat, String fileName) {
+        return runIo(historyIo, () -> HistorialManager.registrarAudio(sender, chat, fileName));
+    }
+
+    String[] localUsers() {
+        return state.users().toArray(new String[0]);
+    }
+
+    String[] localGroups() {
+        return state.groups().toArray(new String[0]);
     }
-}
\ No newline at end of file
+}
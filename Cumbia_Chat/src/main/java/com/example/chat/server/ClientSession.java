@@ -0,0 +1,34 @@
+package com.example.chat.server;
+
+import com.example.chat.generated.CumbiaChat.ChatCallbackPrx;
+import com.zeroc.Ice.Connection;
+
+/**
+ * Sesión Ice de un usuario conectado: su nombre, el callback ya fijado a la conexión,
+ * esa conexión (la vigila LivenessReaper) y su cola de salida.
+ * Cada login crea una sesión nueva, así que se comparan por identidad
+ * (una sesión vieja nunca reemplaza ni borra a la nueva).
+ */
+public final class ClientSession {
+    private final String username;
+    private final ChatCallbackPrx callback;
+    private final Connection connection;
+    private final OutboundQueue outbound;
+
+    public ClientSession(String username, ChatCallbackPrx callback, Connection connection, OutboundQueue outbound) {
+        this.username = username;
+        this.callback = callback;
+        this.connection = connection;
+        this.outbound = outbound;
+    }
+
+    public String getUsername() { return username; }
+    public ChatCallbackPrx getCallback() { return callback; }
+    public Connection getConnection() { return connection; }
+    public OutboundQueue getOutbound() { return outbound; }
+
+    @Override
+    public String toString() {
+        return username;
+    }
+}
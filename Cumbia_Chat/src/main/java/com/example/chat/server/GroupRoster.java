@@ -0,0 +1,123 @@
+package com.example.chat.server;
+
+import com.example.chat.core.ChatState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Snapshot inmutable de las sesiones Ice en línea de un grupo. Los miembros están
+ * en ChatState (compartidos con TCP); el roster los vuelve a mirar bajo su monitor.
+ * join/leave/login/logout reconstruyen el arreglo bajo ese monitor;
+ * el envío solo lee el arreglo volátil, sin locks ni búsquedas en mapas.
+ */
+public class GroupRoster {
+    private static final ClientSession[] EMPTY = new ClientSession[0];
+
+    private final String name;
+    private final ChatState state;
+    private volatile ClientSession[] online = EMPTY;
+    // Modo shard: miembros de otros procesos agrupados por shard. null = hay que rehacerlo
+    private volatile Map<String, String[]> remoteByShard;
+
+    public GroupRoster(String name, ChatState state) {
+        this.name = name;
+        this.state = state;
+    }
+
+    public String getName() { return name; }
+
+    public int memberCount() { return state.memberCount(name); }
+
+    /** Sesiones en línea al momento; el arreglo no se modifica nunca. */
+    public ClientSession[] snapshot() { return online; }
+
+    public Set<String> members() {
+        Set<String> members = state.members(name);
+        return members == null ? Set.of() : members;
+    }
+
+    /**
+     * El usuario ya es miembro en ChatState. La sesión se busca dentro del monitor,
+     * así un login concurrente nunca queda fuera del snapshot.
+     */
+    public synchronized void join(String username, Function<String, ClientSession> sessions) {
+        remoteByShard = null;
+        ClientSession session = sessions.apply(username);
+        if (session != null) online(session);
+    }
+
+    /** El usuario ya salió en ChatState. */
+    public synchronized void leave(String username) {
+        remoteByShard = null;
+        int i = indexOf(username);
+        if (i >= 0) online = without(i);
+    }
+
+    /**
+     * Miembros que no son de este proceso, por shard dueño. Se calcula una vez por
+     * cambio de membresía, no en cada mensaje.
+     */
+    public Map<String, String[]> remoteMembers(ShardRouter router) {
+        Map<String, String[]> cached = remoteByShard;
+        if (cached != null) return cached;
+        synchronized (this) {
+            if (remoteByShard == null) {
+                Map<String, List<String>> byShard = new HashMap<>();
+                for (String username : members()) {
+                    String owner = router.ownerOf(username);
+                    if (!owner.equals(router.localId())) {
+                        byShard.computeIfAbsent(owner, k -> new ArrayList<>()).add(username);
+                    }
+                }
+                Map<String, String[]> result = new HashMap<>();
+                byShard.forEach((shard, names) -> result.put(shard, names.toArray(new String[0])));
+                remoteByShard = result;
+            }
+            return remoteByShard;
+        }
+    }
+
+    /** El usuario inició sesión (o re-inició): si es miembro, su sesión entra al snapshot. */
+    public synchronized void online(ClientSession session) {
+        if (!state.isMember(name, session.getUsername())) return;
+        int i = indexOf(session.getUsername());
+        ClientSession[] next;
+        if (i >= 0) {
+            next = online.clone();
+            next[i] = session;
+        } else {
+            next = Arrays.copyOf(online, online.length + 1);
+            next[online.length] = session;
+        }
+        online = next;
+    }
+
+    /** La sesión se cerró o murió; solo se quita si sigue siendo la misma instancia. */
+    public synchronized void offline(ClientSession session) {
+        int i = indexOf(session.getUsername());
+        if (i >= 0 && online[i] == session) online = without(i);
+    }
+
+    private int indexOf(String username) {
+        ClientSession[] current = online;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].getUsername().equals(username)) return i;
+        }
+        return -1;
+    }
+
+    private ClientSession[] without(int i) {
+        ClientSession[] current = online;
+        if (current.length == 1) return EMPTY;
+        ClientSession[] next = new ClientSession[current.length - 1];
+        System.arraycopy(current, 0, next, 0, i);
+        System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+        return next;
+    }
+}
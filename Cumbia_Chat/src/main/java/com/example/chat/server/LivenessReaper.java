@@ -0,0 +1,122 @@
+package com.example.chat.server;
+
+import com.zeroc.Ice.ACMClose;
+import com.zeroc.Ice.ACMHeartbeat;
+import com.zeroc.Ice.Connection;
+import com.zeroc.Ice.LocalException;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Detecta sesiones cuya conexión murió sin logout. Al hacer login la conexión
+ * queda vigilada (close callback + heartbeats de ACM); cuando Ice la cierra solo
+ * se anota, y un hilo programado barre las sesiones y desaloja las de conexiones
+ * cerradas. El envío de mensajes no participa en nada de esto.
+ * Una conexión puede tener varias sesiones (el proxy Node usa una sola).
+ */
+public class LivenessReaper {
+
+    private final Supplier<Collection<ClientSession>> sessions;
+    private final Consumer<ClientSession> evict;
+    private final Runnable housekeeping;
+    private final Consumer<Connection> onClose;
+    private final int acmTimeoutSeconds;
+    private final boolean closeIdle;
+    private final ScheduledExecutorService scheduler;
+
+    // Conexiones cerradas desde el último barrido
+    private final Set<Connection> closed = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder evicted = ServerMetrics.counter("reaper.evicted");
+
+    /**
+     * @param sessions          sesiones registradas al momento del barrido
+     * @param evict             saca una sesión muerta de todas las estructuras
+     * @param housekeeping      otra limpieza periódica (subidas de audio vencidas)
+     * @param onClose           se avisa apenas Ice cierra una conexión vigilada (en su hilo,
+     *                          debe ser rápido); Ice admite un solo close callback por conexión
+     * @param intervalSeconds   cada cuánto barre
+     * @param acmTimeoutSeconds período de ACM de las conexiones vigiladas
+     * @param closeIdle         cerrar conexiones sin tráfico por acmTimeout; solo sirve si
+     *                          los clientes también mandan heartbeats (Ice.ACM.Heartbeat=3)
+     */
+    public LivenessReaper(Supplier<Collection<ClientSession>> sessions, Consumer<ClientSession> evict,
+                          Runnable housekeeping, Consumer<Connection> onClose,
+                          int intervalSeconds, int acmTimeoutSeconds, boolean closeIdle) {
+        this.sessions = sessions;
+        this.evict = evict;
+        this.housekeeping = housekeeping;
+        this.onClose = onClose;
+        this.acmTimeoutSeconds = acmTimeoutSeconds;
+        this.closeIdle = closeIdle;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cumbia-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::sweep, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Empieza a vigilar la conexión de un login (repetirlo para la misma conexión no cambia nada). */
+    public void watch(Connection con) {
+        if (con == null) return;
+        try {
+            // Heartbeats del servidor: un cliente caído hace fallar la escritura y Ice cierra la conexión
+            con.setACM(OptionalInt.of(acmTimeoutSeconds),
+                    Optional.of(closeIdle ? ACMClose.CloseOnIdleForceful : ACMClose.CloseOff),
+                    Optional.of(ACMHeartbeat.HeartbeatAlways));
+            con.setCloseCallback(this::closed);
+        } catch (LocalException e) {
+            // Ya estaba cerrada: el barrido la encuentra igual
+            closed(con);
+        }
+    }
+
+    private void closed(Connection con) {
+        closed.add(con);
+        onClose.accept(con);
+    }
+
+    private void sweep() {
+        try {
+            boolean pending = !closed.isEmpty();
+            for (ClientSession session : sessions.get()) {
+                Connection con = session.getConnection();
+                if (con == null) continue;
+                if ((pending && closed.contains(con)) || !isOpen(con)) {
+                    System.out.println("[REAPER] Conexión de " + session.getUsername() + " cerrada, se desaloja la sesión");
+                    evict.accept(session);
+                    evicted.increment();
+                }
+            }
+            closed.clear();
+            housekeeping.run();
+        } catch (Exception e) {
+            // Un error no debe cancelar las ejecuciones siguientes
+            System.err.println("[REAPER] Error en el barrido: " + e.getMessage());
+        }
+    }
+
+    private static boolean isOpen(Connection con) {
+        try {
+            con.throwException();
+            return true;
+        } catch (LocalException e) {
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.chat.server;
+
+import com.example.chat.generated.CumbiaChat.ChatCallbackPrx;
+import com.example.chat.generated.CumbiaChat.Message;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Fan-out de mensajes hacia los callbacks de los clientes.
+ * Las entregas usan AMI (receiveMessageAsync) y corren en carriles de un hilo,
+ * así el hilo de despacho de Ice retorna apenas se guarda el historial.
+ * Cada destinatario tiene siempre el mismo carril (hash de su nombre): los grupos
+ * grandes se reparten entre todos los carriles en paralelo, pero a una misma persona
+ * los mensajes le llegan en el orden en que se publicaron. Después cada destinatario
+ * pasa por su OutboundQueue (una invocación en vuelo por sesión).
+ */
+public class MessageFanout {
+
+    private final ThreadPoolExecutor[] lanes;
+    // Reparto por carril del último snapshot de roster: el mismo array mientras el grupo no cambie
+    private record Split(ClientSession[] recipients, ClientSession[][] parts) {}
+    private volatile Split lastSplit = new Split(null, null);
+    private final Function<String, ClientSession> resolver;
+    private final Consumer<ClientSession> onDeadClient;
+    // null si los callbacks son oneway simples (sin batching)
+    private final BatchFlusher batcher;
+
+    private final LongAdder published = ServerMetrics.counter("fanout.published");
+    private final LongAdder delivered = ServerMetrics.counter("fanout.delivered");
+    private final LongAdder failed = ServerMetrics.counter("fanout.failed");
+    private final LongAdder offline = ServerMetrics.counter("fanout.offline");
+    private final LongAdder disconnected = ServerMetrics.counter("outbound.disconnected");
+
+    /**
+     * @param threads       carriles de entrega (normalmente uno por núcleo)
+     * @param queueCapacity tareas pendientes máximas entre todos los carriles; con un
+     *                      carril lleno quien publica espera, así no se adelanta a lo encolado
+     * @param resolver      username -> sesión del cliente conectado (o null)
+     * @param onDeadClient  se invoca cuando falla la entrega a una sesión
+     * @param batcher       flusher de los callbacks batch-oneway, o null
+     */
+    public MessageFanout(int threads, int queueCapacity,
+                         Function<String, ClientSession> resolver,
+                         Consumer<ClientSession> onDeadClient,
+                         BatchFlusher batcher) {
+        this.resolver = resolver;
+        this.onDeadClient = onDeadClient;
+        this.batcher = batcher;
+
+        this.lanes = new ThreadPoolExecutor[Math.max(1, threads)];
+        int perLane = Math.max(16, queueCapacity / lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            String name = "cumbia-fanout-" + (i + 1);
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(perLane),
+                    r -> {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    },
+                    MessageFanout::waitForRoom);
+            // continueDrain y waitForRoom encolan directo: el hilo tiene que existir ya
+            lanes[i].prestartAllCoreThreads();
+        }
+
+        ServerMetrics.gauge("fanout.queue", () -> {
+            long queued = 0;
+            for (ThreadPoolExecutor lane : lanes) queued += lane.getQueue().size();
+            return queued;
+        });
+    }
+
+    // Carril lleno: se espera lugar al final de la cola. Correrla en el hilo que publica
+    // (CallerRunsPolicy) la adelantaría a mensajes anteriores ya encolados
+    private static void waitForRoom(Runnable task, ThreadPoolExecutor lane) {
+        if (lane.isShutdown()) throw new RejectedExecutionException("fan-out detenido");
+        try {
+            lane.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+    }
+
+    private int laneOf(ClientSession session) {
+        return (session.getUsername().hashCode() & 0x7fffffff) % lanes.length;
+    }
+
+    /**
+     * Entrega msg a las sesiones en línea del grupo excepto a la del remitente.
+     * recipients es el snapshot inmutable del roster; se reparte por carril y retorna
+     * sin esperar las entregas. Llamadas sucesivas llegan en ese orden a cada destinatario.
+     */
+    public void publishToGroup(Message msg, String groupName, String sender, ClientSession[] recipients) {
+        published.increment();
+        ClientSession senderSession = resolver.apply(sender);
+
+        ClientSession[][] parts = split(recipients);
+        for (int l = 0; l < lanes.length; l++) {
+            if (parts[l].length == 0) continue;
+            ClientSession[] part = parts[l];
+            ThreadPoolExecutor executor = lanes[l];
+            executor.execute(() -> deliverAll(msg, groupName, senderSession, part, executor));
+        }
+    }
+
+    private ClientSession[][] split(ClientSession[] recipients) {
+        if (lanes.length == 1) return new ClientSession[][] {recipients};
+        Split cached = lastSplit;
+        if (cached.recipients() == recipients) return cached.parts();
+
+        int[] lane = new int[recipients.length];
+        int[] count = new int[lanes.length];
+        for (int i = 0; i < recipients.length; i++) {
+            lane[i] = laneOf(recipients[i]);
+            count[lane[i]]++;
+        }
+        ClientSession[][] parts = new ClientSession[lanes.length][];
+        for (int l = 0; l < lanes.length; l++) parts[l] = new ClientSession[count[l]];
+        int[] filled = new int[lanes.length];
+        for (int i = 0; i < recipients.length; i++) {
+            parts[lane[i]][filled[lane[i]]++] = recipients[i];
+        }
+        lastSplit = new Split(recipients, parts);
+        return parts;
+    }
+
+    // Con el carril sin trabajo pendiente no tiene sentido esperar el umbral del batch
+    private void flushIfIdle(ThreadPoolExecutor lane) {
+        if (batcher != null && lane.getQueue().isEmpty()) {
+            batcher.flushAll();
+        }
+    }
+
+    /**
+     * Entrega un mensaje privado a la sesión ya resuelta por quien llama (si el destinatario
+     * no está conectado el mensaje va al buzón, no pasa por aquí).
+     * En privado el "grupo" que ve el receptor es el remitente.
+     */
+    public void publishPrivate(Message msg, String sender, ClientSession session) {
+        published.increment();
+        deliver(session, msg, sender);
+        flushIfIdle(lanes[laneOf(session)]);
+    }
+
+    private void deliverAll(Message msg, String groupName, ClientSession sender,
+                            ClientSession[] recipients, ThreadPoolExecutor lane) {
+        for (ClientSession session : recipients) {
+            if (session != sender) {
+                deliver(session, msg, groupName);
+            }
+        }
+        flushIfIdle(lane);
+    }
+
+    private void deliver(ClientSession session, Message msg, String chatName) {
+        OutboundQueue.Item item = OutboundQueue.Item.of(msg, chatName);
+        switch (session.getOutbound().offer(item)) {
+            case SEND -> drain(session, item);
+            case QUEUED -> { }
+            case DISCONNECT -> {
+                disconnected.increment();
+                fail(session, new IllegalStateException("cola de salida llena (" + session.getOutbound().depth() + ")"));
+            }
+            case CLOSED -> offline.increment();
+        }
+    }
+
+    /**
+     * Envía item y sigue con la cola de la sesión. Solo hay una invocación en vuelo por
+     * sesión: si no se completa en el acto, el siguiente se envía desde su callback.
+     */
+    private void drain(ClientSession session, OutboundQueue.Item item) {
+        ChatCallbackPrx prx = session.getCallback();
+        OutboundQueue outbound = session.getOutbound();
+
+        while (item != null) {
+            CompletableFuture<Void> f;
+            try {
+                f = prx.receiveMessageAsync(item.msg(), item.chatName());
+            } catch (Exception e) {
+                fail(session, e);
+                return;
+            }
+            if (batcher != null) {
+                batcher.queued(prx);
+            }
+
+            if (!f.isDone()) {
+                f.whenComplete((r, ex) -> {
+                    if (ex != null) {
+                        fail(session, ex);
+                        return;
+                    }
+                    delivered.increment();
+                    OutboundQueue.Item next = outbound.next();
+                    if (next != null) continueDrain(session, next);
+                });
+                return;
+            }
+
+            // Completada en el acto (oneway ya escrito o encolado en el batch): sin recursión
+            try {
+                f.join();
+            } catch (CompletionException e) {
+                fail(session, e.getCause() != null ? e.getCause() : e);
+                return;
+            }
+            delivered.increment();
+            item = outbound.next();
+        }
+    }
+
+    // Sigue la cola de la sesión desde el callback de Ice. El orden ya lo guarda la
+    // OutboundQueue, así que con el carril lleno se envía acá en vez de esperar lugar
+    private void continueDrain(ClientSession session, OutboundQueue.Item next) {
+        ThreadPoolExecutor lane = lanes[laneOf(session)];
+        if (lane.isShutdown() || !lane.getQueue().offer(() -> drain(session, next))) {
+            drain(session, next);
+        }
+    }
+
+    private void fail(ClientSession session, Throwable ex) {
+        failed.increment();
+        System.err.println("  [FANOUT] FALLO -> " + session.getUsername() + ": " + ex.getClass().getName() + " - " + ex.getMessage());
+        session.getOutbound().close();
+        onDeadClient.accept(session);
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) lane.shutdown();
+        try {
+            for (ThreadPoolExecutor lane : lanes) lane.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.chat.server;
+
+import com.example.chat.generated.CumbiaChat.Message;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cola de salida acotada de una sesión. Solo hay una invocación en vuelo por
+ * destinatario; el resto espera aquí, limitado en mensajes y en bytes, así un
+ * cliente lento no acumula peticiones oneway sin límite en la conexión de Ice.
+ * Al llenarse se aplica la política configurada (ver Policy).
+ */
+public class OutboundQueue {
+
+    public enum Policy {
+        /** Descarta los mensajes más viejos hasta que el nuevo quepa. */
+        DROP_OLDEST,
+        /** Colapsa lo pendiente de cada chat en un aviso + el último mensaje. */
+        COALESCE,
+        /** Desconecta al cliente. */
+        DISCONNECT;
+
+        public static Policy parse(String value) {
+            return switch (value.trim().toLowerCase()) {
+                case "coalesce" -> COALESCE;
+                case "disconnect" -> DISCONNECT;
+                default -> DROP_OLDEST;
+            };
+        }
+    }
+
+    /** Resultado de offer: SEND indica que la cola estaba ociosa y quien ofrece debe enviar. */
+    public enum Offer { SEND, QUEUED, DISCONNECT, CLOSED }
+
+    /**
+     * Mensaje pendiente y el chat con el que se entrega. omitted > 0 marca el aviso que
+     * dejó una compactación, con la cantidad de mensajes que reemplaza.
+     */
+    public record Item(Message msg, String chatName, int bytes, int omitted) {
+        public static Item of(Message msg, String chatName) {
+            return new Item(msg, chatName, bytesOf(msg, chatName), 0);
+        }
+
+        // Los clientes (web y proxy Node) solo conocen TEXT y AUDIO: el aviso es un TEXT legible
+        static Item notice(String chatName, int omitted, String date) {
+            Message msg = new Message(NOTICE_SENDER, omitted + " mensaje(s) omitido(s) por conexión lenta", "TEXT", date);
+            return new Item(msg, chatName, bytesOf(msg, chatName), omitted);
+        }
+
+        private static int bytesOf(Message msg, String chatName) {
+            return 64 + 2 * (msg.content.length() + msg.sender.length() + chatName.length());
+        }
+    }
+
+    // Remitente del aviso que reemplaza a los mensajes colapsados
+    public static final String NOTICE_SENDER = "SYSTEM";
+
+    private static final LongAdder DROPPED = ServerMetrics.counter("outbound.dropped");
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final Policy policy;
+
+    private final ArrayDeque<Item> queue = new ArrayDeque<>();
+    private long bytes;
+    private boolean sending;
+    private boolean closed;
+    private volatile int depth;
+    private volatile long drops;
+
+    public OutboundQueue(int maxMessages, long maxBytes, Policy policy) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.policy = policy;
+    }
+
+    public int depth() { return depth; }
+
+    public long drops() { return drops; }
+
+    public synchronized Offer offer(Item item) {
+        if (closed) return Offer.CLOSED;
+        if (!sending) {
+            sending = true;
+            return Offer.SEND;
+        }
+
+        if (queue.size() >= maxMessages || bytes + item.bytes() > maxBytes) {
+            switch (policy) {
+                case DISCONNECT -> {
+                    return Offer.DISCONNECT;
+                }
+                case COALESCE -> coalesce();
+                case DROP_OLDEST -> { }
+            }
+            while (!queue.isEmpty() && (queue.size() >= maxMessages || bytes + item.bytes() > maxBytes)) {
+                bytes -= queue.pollFirst().bytes();
+                dropped(1);
+            }
+        }
+
+        append(item);
+        depth = queue.size();
+        return Offer.QUEUED;
+    }
+
+    /**
+     * Terminó la invocación en vuelo: devuelve el siguiente a enviar o null (la cola queda ociosa).
+     */
+    public synchronized Item next() {
+        Item item = queue.pollFirst();
+        if (item == null) {
+            sending = false;
+        } else {
+            bytes -= item.bytes();
+            depth = queue.size();
+        }
+        return item;
+    }
+
+    /** La sesión murió: se descarta lo pendiente y no se aceptan más mensajes. */
+    public synchronized void close() {
+        closed = true;
+        dropped(queue.size());
+        queue.clear();
+        bytes = 0;
+        depth = 0;
+    }
+
+    private void dropped(int n) {
+        drops += n;
+        DROPPED.add(n);
+    }
+
+    // Por cada chat deja un aviso con la cantidad omitida y el último mensaje.
+    // Los avisos de una compactación anterior se suman al nuevo.
+    private void coalesce() {
+        Map<String, Item> last = new LinkedHashMap<>();
+        Map<String, Integer> skipped = new LinkedHashMap<>();
+        int newlyDropped = 0;
+        for (Item item : queue) {
+            String chat = item.chatName();
+            if (item.omitted() > 0) {
+                skipped.merge(chat, item.omitted(), Integer::sum);
+                last.putIfAbsent(chat, null);
+                continue;
+            }
+            if (last.put(chat, item) != null) {
+                skipped.merge(chat, 1, Integer::sum);
+                newlyDropped++;
+            }
+        }
+
+        queue.clear();
+        bytes = 0;
+        for (Map.Entry<String, Item> e : last.entrySet()) {
+            Integer omitted = skipped.get(e.getKey());
+            if (omitted != null) {
+                String date = e.getValue() != null ? e.getValue().msg().date : "";
+                append(Item.notice(e.getKey(), omitted, date));
+            }
+            if (e.getValue() != null) append(e.getValue());
+        }
+        dropped(newlyDropped);
+    }
+
+    private void append(Item item) {
+        queue.addLast(item);
+        bytes += item.bytes();
+    }
+}
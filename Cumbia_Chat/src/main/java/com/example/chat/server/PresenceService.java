@@ -0,0 +1,151 @@
+package com.example.chat.server;
+
+import com.example.chat.generated.CumbiaChat.PresenceCallbackPrx;
+import com.example.chat.generated.CumbiaChat.PresenceDelta;
+import com.zeroc.Ice.Identity;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Presencia versionada. Cada entrada o salida sube la versión y queda en un log
+ * acotado; un cliente que conoce la versión V pide solo lo que cambió desde V.
+ * Si V ya salió del log se le manda la lista completa.
+ * A los suscriptores se les empuja como mucho un delta por intervalo, así una
+ * ráfaga de logins se convierte en un solo mensaje por suscriptor.
+ */
+public final class PresenceService {
+
+    private record Event(long version, String username, boolean online) {}
+
+    private final int logSize;
+    private final ScheduledExecutorService scheduler;
+
+    // Todo el estado se protege con el monitor de this
+    private final Set<String> online = new HashSet<>();
+    private final ArrayDeque<Event> log = new ArrayDeque<>();
+    private long version;
+    // Versión del último evento que se sacó del log; deltas desde antes son completos
+    private long truncatedUpTo;
+    private long lastPushed;
+    private final Map<Identity, PresenceCallbackPrx> subscribers = new HashMap<>();
+
+    private final LongAdder pushes = ServerMetrics.counter("presence.pushes");
+    private final LongAdder fullDeltas = ServerMetrics.counter("presence.full");
+
+    /**
+     * @param logSize        eventos que se recuerdan para deltas incrementales
+     * @param intervalMillis cada cuánto se empujan los cambios a los suscriptores
+     */
+    public PresenceService(int logSize, int intervalMillis) {
+        this.logSize = Math.max(1, logSize);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cumbia-presence");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::push, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+        ServerMetrics.gauge("presence.version", this::version);
+        ServerMetrics.gauge("presence.subscribers", this::subscriberCount);
+    }
+
+    public synchronized long version() { return version; }
+
+    private synchronized int subscriberCount() { return subscribers.size(); }
+
+    public synchronized void online(String username) {
+        if (online.add(username)) record(username, true);
+    }
+
+    public synchronized void offline(String username) {
+        if (online.remove(username)) record(username, false);
+    }
+
+    private void record(String username, boolean isOnline) {
+        log.addLast(new Event(++version, username, isOnline));
+        while (log.size() > logSize) {
+            truncatedUpTo = log.pollFirst().version();
+        }
+    }
+
+    /** Cambios posteriores a sinceVersion, o la lista completa si no alcanza el log. */
+    public synchronized PresenceDelta delta(long sinceVersion) {
+        if (sinceVersion <= 0 || sinceVersion < truncatedUpTo || sinceVersion > version) {
+            fullDeltas.increment();
+            return new PresenceDelta(version, online.toArray(new String[0]), new String[0], true);
+        }
+
+        // Un usuario que entró y salió varias veces solo cuenta con su último estado
+        Map<String, Boolean> last = new LinkedHashMap<>();
+        for (var it = log.descendingIterator(); it.hasNext(); ) {
+            Event e = it.next();
+            if (e.version() <= sinceVersion) break;
+            last.putIfAbsent(e.username(), e.online());
+        }
+        List<String> in = new ArrayList<>();
+        List<String> out = new ArrayList<>();
+        last.forEach((user, isOnline) -> (isOnline ? in : out).add(user));
+        return new PresenceDelta(version, in.toArray(new String[0]), out.toArray(new String[0]), false);
+    }
+
+    /**
+     * Registra el callback (ya fijado a la conexión del cliente) y devuelve el delta
+     * desde sinceVersion; los empujes siguientes pueden repetir parte, nunca dejan huecos.
+     */
+    public synchronized PresenceDelta subscribe(PresenceCallbackPrx cb, long sinceVersion) {
+        subscribers.put(cb.ice_getIdentity(), cb);
+        return delta(sinceVersion);
+    }
+
+    public synchronized void unsubscribe(Identity id) {
+        subscribers.remove(id);
+    }
+
+    private void push() {
+        PresenceDelta delta;
+        List<PresenceCallbackPrx> targets;
+        synchronized (this) {
+            if (version == lastPushed || subscribers.isEmpty()) {
+                lastPushed = version;
+                return;
+            }
+            delta = delta(lastPushed);
+            lastPushed = version;
+            targets = new ArrayList<>(subscribers.values());
+        }
+
+        // Fuera del monitor: el envío es oneway y los que fallan se dan de baja
+        for (PresenceCallbackPrx cb : targets) {
+            try {
+                cb.presenceChangedAsync(delta).whenComplete((r, ex) -> {
+                    if (ex != null) drop(cb, ex);
+                });
+                pushes.increment();
+            } catch (Exception e) {
+                drop(cb, e);
+            }
+        }
+    }
+
+    private void drop(PresenceCallbackPrx cb, Throwable ex) {
+        System.err.println("  [PRESENCE] Suscriptor dado de baja: " + ex.getClass().getName() + " - " + ex.getMessage());
+        synchronized (this) {
+            subscribers.remove(cb.ice_getIdentity(), cb);
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
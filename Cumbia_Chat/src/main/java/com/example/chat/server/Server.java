@@ -1,36 +1,73 @@
 package com.example.chat.server;
 
 import com.zeroc.Ice.Communicator;
+import com.zeroc.Ice.InitializationData;
 import com.zeroc.Ice.ObjectAdapter;
+import com.zeroc.Ice.Properties;
 import com.zeroc.Ice.Util;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 public class Server {
     public static void main(String[] args) {
         System.out.println("===========================================");
         System.out.println(">>> Iniciando Servidor CumbiaChat (Ice RPC)...");
         System.out.println("===========================================\n");
 
-        try (Communicator communicator = Util.initialize(args)) {
+        InitializationData initData = new InitializationData();
+        initData.properties = Util.createProperties(args);
+
+        // CumbiaChat.VirtualThreads=1: cada petición se despacha en su propio hilo virtual,
+        // sin quedar limitada por Ice.ThreadPool.Server.SizeMax
+        ExecutorService virtualDispatcher = null;
+        if (useVirtualThreads(initData.properties)) {
+            virtualDispatcher = newVirtualDispatcher();
+            ExecutorService dispatcher = virtualDispatcher;
+            initData.dispatcher = (runnable, con) -> dispatcher.execute(runnable);
+            System.out.println("→ Despacho en hilos virtuales activado");
+        }
+
+        try (Communicator communicator = Util.initialize(initData)) {
             
-            // Crear adaptador en puerto 10000 (TCP)
-            System.out.println("→ Creando adaptador en puerto 10000...");
+            // Crear e instanciar el servicio
+            System.out.println("→ Creando servicio ChatService...");
+            ChatServiceI service = new ChatServiceI(communicator.getProperties());
+
+            // Crear adaptador en puerto 10000 (TCP), o en los endpoints de este shard
+            ShardRouter router = service.router();
+            String endpoints = router.localEndpoints() != null ? router.localEndpoints() : "default -p 10000";
+            System.out.println("→ Creando adaptador en " + endpoints + "...");
             ObjectAdapter adapter = communicator.createObjectAdapterWithEndpoints(
                 "ChatAdapter", 
-                "default -p 10000"
+                endpoints
             );
 
-            // Crear e instanciar el servicio
-            System.out.println("→ Creando servicio ChatService...");
-            ChatServiceI service = new ChatServiceI();
-
             // Registrar el servicio
             System.out.println("→ Registrando servicio con identidad 'ChatService'...");
             adapter.add(service, Util.stringToIdentity("ChatService"));
 
+            if (router.enabled()) {
+                System.out.println("→ Modo shard: este proceso es '" + router.localId() + "'");
+                service.connectShards(communicator);
+                adapter.add(new ShardPeerI(service), Util.stringToIdentity("ShardPeer"));
+            }
+
             // Activar el adaptador
             System.out.println("→ Activando adaptador...\n");
             adapter.activate();
 
+            // CumbiaChat.Tcp.Enabled=1: el servidor TCP corre en este proceso y comparte
+            // usuarios y grupos (ChatState). Su modo sigue siendo -Dcumbia.tcp.mode
+            if (communicator.getProperties().getPropertyAsIntWithDefault("CumbiaChat.Tcp.Enabled", 0) > 0) {
+                Thread tcp = new Thread(() -> com.example.chat.TCP.Server.main(new String[0]), "cumbia-tcp");
+                tcp.setDaemon(true);
+                tcp.start();
+                System.out.println("→ Servidor TCP en el mismo proceso");
+            }
+
             System.out.println("╔═══════════════════════════════════════════╗");
             System.out.println("║   ✅ SERVIDOR LISTO Y ESCUCHANDO          ║");
             System.out.println("║                                           ║");
@@ -41,8 +78,28 @@ public class Server {
             System.out.println("║   Esperando conexiones de Node.js...      ║");
             System.out.println("╚═══════════════════════════════════════════╝\n");
             
+            // Métricas periódicas (CumbiaChat.Metrics.Interval en segundos, 0 = apagado)
+            ScheduledExecutorService metricsReporter = null;
+            int metricsInterval = communicator.getProperties()
+                    .getPropertyAsIntWithDefault("CumbiaChat.Metrics.Interval", 0);
+            if (metricsInterval > 0) {
+                metricsReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "cumbia-metrics");
+                    t.setDaemon(true);
+                    return t;
+                });
+                metricsReporter.scheduleAtFixedRate(() -> {
+                    System.out.println(ServerMetrics.format());
+                    System.out.print(service.outboundReport());
+                }, metricsInterval, metricsInterval, TimeUnit.SECONDS);
+            }
+
             // Esperar señal de apagado (Ctrl+C)
             communicator.waitForShutdown();
+
+            if (metricsReporter != null) metricsReporter.shutdownNow();
+            service.shutdown();
+            if (virtualDispatcher != null) virtualDispatcher.shutdown();
             
             System.out.println("\n>>> Servidor detenido correctamente");
             
@@ -52,4 +109,13 @@ public class Server {
             System.exit(1);
         }
     }
+
+    /** Un hilo virtual por petición; AmdBenchmark usa el mismo. */
+    static ExecutorService newVirtualDispatcher() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ice-dispatch-", 0).factory());
+    }
+
+    static boolean useVirtualThreads(Properties props) {
+        return props.getPropertyAsIntWithDefault("CumbiaChat.VirtualThreads", 0) > 0;
+    }
 }
\ No newline at end of file
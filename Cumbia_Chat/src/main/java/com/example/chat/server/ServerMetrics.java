@@ -0,0 +1,41 @@
+package com.example.chat.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registro de métricas del servidor Ice: contadores acumulados y gauges
+ * (valores leídos al momento). Server las imprime cada
+ * CumbiaChat.Metrics.Interval segundos si la propiedad es mayor a 0.
+ */
+public final class ServerMetrics {
+
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private ServerMetrics() {}
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((name, c) -> result.put(name, c.sum()));
+        gauges.forEach((name, g) -> result.put(name, g.getAsLong()));
+        return result;
+    }
+
+    public static String format() {
+        StringBuilder sb = new StringBuilder("[METRICS]");
+        snapshot().forEach((name, value) -> sb.append(' ').append(name).append('=').append(value));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.chat.server;
+
+import com.example.chat.generated.CumbiaChat.Message;
+import com.example.chat.generated.CumbiaChat.ShardPeer;
+import com.zeroc.Ice.Current;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Lado servidor de las llamadas entre shards; delega en el ChatServiceI local.
+ */
+public class ShardPeerI implements ShardPeer {
+
+    private final ChatServiceI service;
+
+    public ShardPeerI(ChatServiceI service) {
+        this.service = service;
+    }
+
+    @Override
+    public CompletionStage<Void> deliverGroupAsync(String groupName, Message msg, String[] recipients, Current current) {
+        service.deliverGroupLocal(groupName, msg, recipients);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletionStage<Boolean> addMemberAsync(String groupName, String username, Current current) {
+        return CompletableFuture.completedFuture(service.addMemberLocal(groupName, username));
+    }
+
+    @Override
+    public CompletionStage<Void> removeMemberAsync(String groupName, String username, Current current) {
+        service.removeMemberLocal(groupName, username);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletionStage<Void> recordAudioAsync(String sender, String chat, String fileName, Current current) {
+        return service.recordAudioLocal(sender, chat, fileName);
+    }
+
+    @Override
+    public CompletionStage<String[]> localUsersAsync(Current current) {
+        return CompletableFuture.completedFuture(service.localUsers());
+    }
+
+    @Override
+    public CompletionStage<String[]> localGroupsAsync(Current current) {
+        return CompletableFuture.completedFuture(service.localGroups());
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.chat.server;
+
+import com.zeroc.Ice.Properties;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reparto de usuarios y grupos entre procesos (modo shard).
+ * Cada shard se declara en la configuración con sus endpoints:
+ *
+ *   CumbiaChat.Shard.Id=a
+ *   CumbiaChat.Shard.a.Endpoints=tcp -h localhost -p 10000
+ *   CumbiaChat.Shard.b.Endpoints=tcp -h localhost -p 10001
+ *
+ * El dueño de una clave (username o nombre de grupo) sale de un anillo de hash
+ * consistente con nodos virtuales: agregar un shard solo mueve ~1/N de las claves.
+ * Sin shards declarados todo es local.
+ */
+public class ShardRouter {
+
+    private static final Pattern ENDPOINTS = Pattern.compile("^CumbiaChat\\.Shard\\.([\\w-]+)\\.Endpoints$");
+
+    private final String localId;
+    // shardId -> endpoints, ordenado para que todos los procesos armen el mismo anillo
+    private final Map<String, String> shards;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    private ShardRouter(String localId, Map<String, String> shards, int virtualNodes) {
+        this.localId = localId;
+        this.shards = Collections.unmodifiableMap(shards);
+        for (String id : shards.keySet()) {
+            for (int v = 0; v < virtualNodes; v++) {
+                ring.put(hash(id + "#" + v), id);
+            }
+        }
+    }
+
+    public static ShardRouter fromProperties(Properties props) {
+        Map<String, String> shards = new TreeMap<>();
+        for (Map.Entry<String, String> e : props.getPropertiesForPrefix("CumbiaChat.Shard.").entrySet()) {
+            Matcher m = ENDPOINTS.matcher(e.getKey());
+            if (m.matches() && !e.getValue().isBlank()) {
+                shards.put(m.group(1), e.getValue().trim());
+            }
+        }
+        String localId = props.getProperty("CumbiaChat.Shard.Id");
+        if (shards.isEmpty()) {
+            return new ShardRouter("", shards, 0);
+        }
+        if (!shards.containsKey(localId)) {
+            throw new IllegalArgumentException("CumbiaChat.Shard.Id=" + localId + " no está entre los shards " + shards.keySet());
+        }
+        return new ShardRouter(localId, shards,
+                Math.max(1, props.getPropertyAsIntWithDefault("CumbiaChat.Shard.VirtualNodes", 128)));
+    }
+
+    /** true si hay más de un proceso; con uno solo no hace falta consultar el anillo. */
+    public boolean enabled() {
+        return shards.size() > 1;
+    }
+
+    public String localId() { return localId; }
+
+    /** Endpoints de este proceso, o null si no se declararon shards. */
+    public String localEndpoints() {
+        return shards.get(localId);
+    }
+
+    public String endpointsOf(String shardId) {
+        return shards.get(shardId);
+    }
+
+    public Iterable<String> shardIds() {
+        return shards.keySet();
+    }
+
+    public String ownerOf(String key) {
+        if (!enabled()) return localId;
+        Map.Entry<Long, String> e = ring.ceilingEntry(hash(key));
+        return (e != null ? e : ring.firstEntry()).getValue();
+    }
+
+    public boolean isLocal(String key) {
+        return !enabled() || localId.equals(ownerOf(key));
+    }
+
+    // FNV-1a de 64 bits con un mezclado final para repartir mejor los nodos virtuales
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.chat.TCP;
+
+import com.example.chat.core.ChatState;
+import com.example.chat.server.ChatServiceI;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.zeroc.Ice.Util;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Los dos frontends escribiendo ChatState.shared() a la vez: pedidos JSON por
+ * JSONProtocolHandler.process (lo mismo que corre en los tres modos de Server) y
+ * llamadas a ChatServiceI por sus métodos AMD, sin red. Como el estado es del proceso,
+ * cada prueba usa nombres propios.
+ */
+class ChatStateFrontendsTest {
+
+    private static final int THREADS = 8;
+    private static final ChatState state = ChatState.shared();
+
+    private static PrintStream stdout;
+    private static ChatServiceI ice;
+    private static final Map<String, ClientHandler> tcpUsers = new ConcurrentHashMap<>();
+
+    @BeforeAll
+    static void start() {
+        // Los dos frontends loguean cada pedido
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ice = new ChatServiceI(Util.createProperties());
+    }
+
+    @AfterAll
+    static void stop() {
+        ice.shutdown();
+        System.setOut(stdout);
+    }
+
+    @Test
+    void groupsCreatedFromBothFrontendsExistOnce() throws Exception {
+        String run = run();
+        int groups = 100;
+        AtomicIntegerArray tcpCreated = new AtomicIntegerArray(groups);
+
+        runConcurrently(t -> {
+            JSONProtocolHandler tcp = handler();
+            for (int g = 0; g < groups; g++) {
+                String group = run + "g" + g;
+                if (t % 2 == 0) {
+                    String response = tcp(tcp, "{\"action\":\"CREATE_GROUP\",\"data\":{\"groupName\":\"" + group
+                            + "\",\"creatorUsername\":\"" + run + "creator" + t + "\"}}");
+                    if (success(response)) tcpCreated.incrementAndGet(g);
+                } else {
+                    ice.createGroupAsync(group, run + "creator" + t, null).toCompletableFuture().join();
+                }
+            }
+        });
+
+        Set<String> fromIce = Set.of(ice.getGroupsAsync(null).toCompletableFuture().join());
+        Set<String> fromTcp = list(tcp(handler(), "{\"action\":\"GET_AVAILABLE_GROUPS\"}"), "groups");
+        for (int g = 0; g < groups; g++) {
+            String group = run + "g" + g;
+            assertTrue(tcpCreated.get(g) <= 1, group + " creado " + tcpCreated.get(g) + " veces por TCP");
+            assertTrue(fromIce.contains(group) && fromTcp.contains(group), group);
+            // El creador queda como miembro solo si lo creó TCP
+            assertEquals(tcpCreated.get(g), state.memberCount(group), group);
+        }
+    }
+
+    @Test
+    void joinsFromBothFrontendsAreAllKept() throws Exception {
+        String run = run();
+        int groups = 6;
+        int perThread = 25;
+        for (int g = 0; g < groups; g++) state.createGroup(run + "g" + g);
+
+        // La mitad se une por TCP y la otra por Ice; al mismo tiempo otros usuarios entran
+        // por TCP y salen con el logout de Ice, que los saca de todos sus grupos
+        runConcurrently(t -> {
+            JSONProtocolHandler tcp = handler();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < perThread; i++) {
+                String user = run + "u" + t + "-" + i;
+                String churn = run + "c" + random.nextInt(THREADS);
+                for (int g = 0; g < groups; g++) {
+                    String group = run + "g" + ((g + t) % groups);
+                    if (t % 2 == 0) {
+                        assertTrue(success(tcp(tcp, join(group, user))), user + " -> " + group);
+                    } else {
+                        assertTrue(ice.joinGroupAsync(group, user, null).toCompletableFuture().join(), user + " -> " + group);
+                    }
+                    tcp(tcp, join(run + "g" + random.nextInt(groups), churn));
+                }
+                ice.logoutAsync(churn, null).toCompletableFuture().join();
+            }
+        });
+
+        for (int g = 0; g < groups; g++) {
+            Set<String> members = state.members(run + "g" + g);
+            long kept = members.stream().filter(m -> m.startsWith(run + "u")).count();
+            assertEquals(THREADS * perThread, kept, "miembros de " + run + "g" + g);
+        }
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < perThread; i++) {
+                String user = run + "u" + t + "-" + i;
+                // Unido por un frontend, visto por el otro
+                Set<String> fromIce = Set.of(ice.getUserGroupsAsync(user, null).toCompletableFuture().join());
+                assertEquals(groups, fromIce.size(), "grupos de " + user);
+            }
+        }
+        for (int c = 0; c < THREADS; c++) {
+            String churn = run + "c" + c;
+            Set<String> joined = new HashSet<>();
+            for (int g = 0; g < groups; g++) {
+                if (state.isMember(run + "g" + g, churn)) joined.add(run + "g" + g);
+            }
+            assertEquals(joined, state.groupsOf(churn), "índice de " + churn);
+        }
+    }
+
+    @Test
+    void listsSeenFromEitherFrontendOnlyMoveForward() throws Exception {
+        String run = run();
+        int writers = THREADS / 2;
+        int perWriter = 300;
+        // Cuántos grupos terminó de crear cada escritor (<run>w<k>-0, -1...)
+        AtomicIntegerArray created = new AtomicIntegerArray(writers);
+        AtomicInteger writing = new AtomicInteger(writers);
+
+        runConcurrently(t -> {
+            JSONProtocolHandler tcp = handler();
+            if (t < writers) {
+                for (int i = 0; i < perWriter; i++) {
+                    String group = run + "w" + t + "-" + i;
+                    String user = run + "p" + t + "-" + i;
+                    if (i % 2 == 0) {
+                        tcp(tcp, "{\"action\":\"CREATE_GROUP\",\"data\":{\"groupName\":\"" + group
+                                + "\",\"creatorUsername\":\"" + user + "\"}}");
+                    } else {
+                        ice.createGroupAsync(group, user, null).toCompletableFuture().join();
+                    }
+                    tcp(tcp, "{\"action\":\"LOGIN\",\"data\":{\"username\":\"" + user + "\"}}");
+                    created.set(t, i + 1);
+                }
+                writing.decrementAndGet();
+                return;
+            }
+            while (writing.get() > 0) {
+                int[] before = new int[writers];
+                for (int w = 0; w < writers; w++) before[w] = created.get(w);
+                boolean viaTcp = ThreadLocalRandom.current().nextBoolean();
+                Set<String> groups = viaTcp
+                        ? list(tcp(tcp, "{\"action\":\"GET_AVAILABLE_GROUPS\"}"), "groups")
+                        : Set.of(ice.getGroupsAsync(null).toCompletableFuture().join());
+                Set<String> users = viaTcp
+                        ? Set.of(ice.getConnectedUsersAsync(null).toCompletableFuture().join())
+                        : list(tcp(tcp, "{\"action\":\"GET_ACTIVE_USERS\"}"), "users");
+                for (int w = 0; w < writers; w++) {
+                    if (before[w] == 0) continue;
+                    String last = "w" + w + "-" + (before[w] - 1);
+                    assertTrue(groups.contains(run + last), "falta el grupo " + last);
+                    assertTrue(users.contains(run + "p" + w + "-" + (before[w] - 1)), "falta el usuario de " + last);
+                }
+            }
+        });
+
+        JSONProtocolHandler tcp = handler();
+        for (int w = 0; w < writers; w++) {
+            for (int i = 0; i < perWriter; i++) {
+                String user = run + "p" + w + "-" + i;
+                assertTrue(state.isOnline(user), user);
+                tcp(tcp, "{\"action\":\"LOGOUT\",\"data\":{\"username\":\"" + user + "\"}}");
+                assertFalse(state.isOnline(user), user);
+            }
+        }
+    }
+
+    private static JSONProtocolHandler handler() {
+        return new JSONProtocolHandler(new Socket(), tcpUsers, null, Runnable::run, Runnable::run);
+    }
+
+    private static String tcp(JSONProtocolHandler handler, String json) throws IOException {
+        return handler.process(JsonRequests.read(json), null);
+    }
+
+    private static String join(String group, String user) {
+        return "{\"action\":\"JOIN_GROUP\",\"data\":{\"groupName\":\"" + group + "\",\"username\":\"" + user + "\"}}";
+    }
+
+    private static boolean success(String response) {
+        return response.contains("\"status\":\"success\"");
+    }
+
+    private static Set<String> list(String response, String key) {
+        Set<String> names = new HashSet<>();
+        for (JsonElement name : JsonParser.parseString(response).getAsJsonObject()
+                .getAsJsonObject("data").getAsJsonArray(key)) {
+            names.add(name.getAsString());
+        }
+        return names;
+    }
+
+    private static String run() {
+        return "t" + Long.toString(System.nanoTime(), 36) + "-";
+    }
+
+    @FunctionalInterface
+    interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runConcurrently(Worker worker) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            CyclicBarrier start = new CyclicBarrier(THREADS);
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int id = t;
+                tasks.add(pool.submit(() -> {
+                    start.await();
+                    worker.run(id);
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) task.get(120, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.chat.TCP;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * N conexiones concurrentes (10k por defecto) contra un Server ya corriendo, para comparar
+ * los modos -Dcumbia.tcp.mode=threads, virtual y nio. No es un test: se levanta el
+ * servidor en el modo a medir y se corre a mano con
+ *
+ *   java -cp <classpath de test> com.example.chat.TCP.ConnectionBenchmark
+ *
+ * Cada cliente (un hilo virtual) se conecta, hace LOGIN y espera a que todos estén
+ * conectados; con las N conexiones abiertas a la vez cada uno manda GET_AVAILABLE_GROUPS
+ * y mide la ida y vuelta. Después se cierran todas. Un cliente que no recibe respuesta
+ * en bench.timeoutSeconds cuenta como fallido.
+ * Propiedades: bench.host, bench.port, bench.connections, bench.timeoutSeconds.
+ * El límite de archivos abiertos (ulimit -n) debe alcanzar para N en ambos procesos.
+ */
+public class ConnectionBenchmark {
+
+    private static final String HOST = System.getProperty("bench.host", "localhost");
+    private static final int PORT = Integer.getInteger("bench.port", 12345);
+    private static final int CONNECTIONS = Integer.getInteger("bench.connections", 10_000);
+    private static final int TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(Integer.getInteger("bench.timeoutSeconds", 30));
+
+    private static final long[] connectNanos = new long[CONNECTIONS];
+    private static final long[] loginNanos = new long[CONNECTIONS];
+    private static final long[] roundTripNanos = new long[CONNECTIONS];
+    private static final AtomicInteger connected = new AtomicInteger();
+    private static final AtomicInteger loggedIn = new AtomicInteger();
+    private static final AtomicInteger answered = new AtomicInteger();
+
+    // Todos conectados (o fallidos) antes de medir; nadie cierra hasta que todos midieron
+    private static final CountDownLatch allReady = new CountDownLatch(CONNECTIONS);
+    private static final CountDownLatch allMeasured = new CountDownLatch(CONNECTIONS);
+
+    public static void main(String[] args) throws Exception {
+        Arrays.fill(connectNanos, -1);
+        Arrays.fill(loginNanos, -1);
+        Arrays.fill(roundTripNanos, -1);
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        System.out.println(CONNECTIONS + " conexiones a " + HOST + ":" + PORT + ", timeout " + TIMEOUT_MS + "ms");
+
+        long t0 = System.nanoTime();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CONNECTIONS; i++) {
+                int id = i;
+                clients.execute(() -> client(id, "bench-" + run + "-" + id));
+            }
+        }
+        long total = System.nanoTime() - t0;
+
+        System.out.printf("conectadas %d, login ok %d, respuestas con todas abiertas %d/%d, total %dms%n",
+                connected.get(), loggedIn.get(), answered.get(), CONNECTIONS, TimeUnit.NANOSECONDS.toMillis(total));
+        report("connect", connectNanos);
+        report("login", loginNanos);
+        report("ida y vuelta", roundTripNanos);
+    }
+
+    private static void client(int id, String username) {
+        boolean ready = false;
+        boolean measured = false;
+        try (Socket socket = new Socket()) {
+            long start = System.nanoTime();
+            socket.connect(new InetSocketAddress(HOST, PORT), TIMEOUT_MS);
+            connectNanos[id] = System.nanoTime() - start;
+            connected.incrementAndGet();
+            socket.setSoTimeout(TIMEOUT_MS);
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            send(out, "{\"action\":\"LOGIN\",\"data\":{\"username\":\"" + username + "\"}}");
+            if (!success(in.readLine())) return;
+            loginNanos[id] = System.nanoTime() - start;
+            loggedIn.incrementAndGet();
+
+            allReady.countDown();
+            ready = true;
+            allReady.await();
+
+            start = System.nanoTime();
+            send(out, "{\"action\":\"GET_AVAILABLE_GROUPS\"}");
+            if (success(in.readLine())) {
+                roundTripNanos[id] = System.nanoTime() - start;
+                answered.incrementAndGet();
+            }
+            allMeasured.countDown();
+            measured = true;
+            allMeasured.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            // Rechazada o sin respuesta: queda en -1
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!ready) allReady.countDown();
+            if (!measured) allMeasured.countDown();
+        }
+    }
+
+    private static void send(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static boolean success(String response) {
+        return response != null && response.contains("\"status\":\"success\"");
+    }
+
+    private static void report(String name, long[] nanos) {
+        long[] ok = Arrays.stream(nanos).filter(n -> n >= 0).sorted().toArray();
+        if (ok.length == 0) {
+            System.out.printf("  %-13s sin datos%n", name);
+            return;
+        }
+        System.out.printf("  %-13s p50 %8.2fms  p99 %8.2fms  max %8.2fms%n", name,
+                ok[ok.length / 2] / 1e6, ok[(int) Math.min(ok.length - 1, ok.length * 0.99)] / 1e6, ok[ok.length - 1] / 1e6);
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.chat.TCP;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Un grupo con muchos suscriptores (1000 por defecto) y un remitente, contra un Server ya
+ * corriendo, para comparar el broadcast de -Dcumbia.tcp.mode=threads, virtual y nio.
+ * Igual que ConnectionBenchmark no es un test: se levanta el servidor en el modo a medir y
+ * se corre a mano con
+ *
+ *   java -cp <classpath de test> com.example.chat.TCP.GroupThroughputBenchmark
+ *
+ * Cada suscriptor (un hilo virtual) hace SUBSCRIBE y JOIN_GROUP y lee eventos. Con todos
+ * adentro, el remitente manda bench.messages mensajes de a uno (espera la respuesta de
+ * cada envío); cada mensaje lleva su número y el nanoTime de envío, y el suscriptor mide
+ * la latencia al leerlo. Se reportan entregas por segundo (desde el primer envío hasta la
+ * última entrega) y p50/p99/max de latencia.
+ * Propiedades: bench.host, bench.port, bench.subscribers, bench.messages, bench.bytes
+ * (relleno de cada mensaje), bench.timeoutSeconds.
+ * En modo threads el servidor atiende a lo sumo THREAD_POOL_SIZE conexiones (contando la
+ * del remitente): con más suscriptores el resto espera hasta el timeout y no cuenta.
+ */
+public class GroupThroughputBenchmark {
+
+    private static final String HOST = System.getProperty("bench.host", "localhost");
+    private static final int PORT = Integer.getInteger("bench.port", 12345);
+    private static final int SUBSCRIBERS = Integer.getInteger("bench.subscribers", 1000);
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 200);
+    private static final int BYTES = Integer.getInteger("bench.bytes", 200);
+    private static final int TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(Integer.getInteger("bench.timeoutSeconds", 60));
+
+    private static final String MESSAGE_FIELD = "\"message\":\"";
+
+    // Latencia de cada entrega, [suscriptor * MESSAGES + mensaje]; -1 si no llegó
+    private static final long[] latencyNanos = new long[SUBSCRIBERS * MESSAGES];
+    private static final AtomicInteger joined = new AtomicInteger();
+    private static final AtomicInteger delivered = new AtomicInteger();
+    private static final AtomicLong lastDelivery = new AtomicLong();
+
+    private static final CountDownLatch allReady = new CountDownLatch(SUBSCRIBERS);
+    private static final CountDownLatch allDone = new CountDownLatch(SUBSCRIBERS);
+
+    public static void main(String[] args) throws Exception {
+        Arrays.fill(latencyNanos, -1);
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        String group = "bench-" + run;
+        System.out.println(SUBSCRIBERS + " suscriptores, " + MESSAGES + " mensajes de ~" + BYTES + " bytes a "
+                + HOST + ":" + PORT);
+
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = reader(socket);
+            String sender = "bench-" + run + "-sender";
+            send(out, "{\"action\":\"CREATE_GROUP\",\"data\":{\"groupName\":\"" + group
+                    + "\",\"creatorUsername\":\"" + sender + "\"}}");
+            if (!success(in.readLine())) throw new IOException("no se pudo crear " + group);
+
+            try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < SUBSCRIBERS; i++) {
+                    int id = i;
+                    clients.execute(() -> subscriber(id, "bench-" + run + "-" + id, group));
+                }
+                allReady.await();
+                System.out.println("en el grupo: " + joined.get() + "/" + SUBSCRIBERS);
+
+                String padding = "x".repeat(BYTES);
+                long t0 = System.nanoTime();
+                for (int m = 0; m < MESSAGES; m++) {
+                    send(out, "{\"action\":\"SEND_MESSAGE_TO_GROUP\",\"data\":{\"groupName\":\"" + group
+                            + "\",\"sender\":\"" + sender + "\",\"message\":\"" + m + "@" + System.nanoTime()
+                            + "@" + padding + "\"}}");
+                    // El remitente no hizo SUBSCRIBE: por su conexión solo vuelven respuestas
+                    if (!success(in.readLine())) throw new IOException("envío " + m + " rechazado");
+                }
+                long sendNanos = System.nanoTime() - t0;
+                allDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                long totalNanos = Math.max(1, lastDelivery.get() - t0);
+
+                System.out.printf("entregas %d/%d, envío %dms, hasta la última entrega %dms%n",
+                        delivered.get(), SUBSCRIBERS * MESSAGES,
+                        TimeUnit.NANOSECONDS.toMillis(sendNanos), TimeUnit.NANOSECONDS.toMillis(totalNanos));
+                System.out.printf("  entregas/s    %.0f%n", delivered.get() / (totalNanos / 1e9));
+                report("latencia", latencyNanos);
+                // Los suscriptores se quedan leyendo hasta que se cierra su socket
+                clients.shutdownNow();
+            }
+        }
+    }
+
+    private static void subscriber(int id, String username, String group) {
+        boolean ready = false;
+        try (Socket socket = connect()) {
+            socket.setSoTimeout(TIMEOUT_MS);
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = reader(socket);
+
+            send(out, "{\"action\":\"SUBSCRIBE\",\"data\":{\"username\":\"" + username + "\"}}");
+            if (!success(in.readLine())) return;
+            send(out, "{\"action\":\"JOIN_GROUP\",\"data\":{\"groupName\":\"" + group
+                    + "\",\"username\":\"" + username + "\"}}");
+            if (!success(in.readLine())) return;
+            joined.incrementAndGet();
+            allReady.countDown();
+            ready = true;
+            // El timeout de lectura corre desde que empiezan los envíos, no mientras entran los demás
+            allReady.await();
+
+            int received = 0;
+            String line;
+            while (received < MESSAGES && (line = in.readLine()) != null) {
+                long now = System.nanoTime();
+                int at = line.indexOf(MESSAGE_FIELD);
+                if (!line.startsWith("{\"event\"") || at < 0) continue;
+                int start = at + MESSAGE_FIELD.length();
+                int sep = line.indexOf('@', start);
+                int m = Integer.parseInt(line, start, sep, 10);
+                long sentAt = Long.parseLong(line, sep + 1, line.indexOf('@', sep + 1), 10);
+                latencyNanos[id * MESSAGES + m] = now - sentAt;
+                lastDelivery.accumulateAndGet(now, Math::max);
+                delivered.incrementAndGet();
+                received++;
+            }
+        } catch (IOException e) {
+            // Sin respuesta o cortada: sus entregas quedan en -1
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!ready) allReady.countDown();
+            allDone.countDown();
+        }
+    }
+
+    private static Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(HOST, PORT), TIMEOUT_MS);
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static void send(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static boolean success(String response) {
+        return response != null && response.contains("\"status\":\"success\"");
+    }
+
+    private static void report(String name, long[] nanos) {
+        long[] ok = Arrays.stream(nanos).filter(n -> n >= 0).sorted().toArray();
+        if (ok.length == 0) {
+            System.out.printf("  %-13s sin datos%n", name);
+            return;
+        }
+        System.out.printf("  %-13s p50 %8.2fms  p99 %8.2fms  max %8.2fms%n", name,
+                ok[ok.length / 2] / 1e6, ok[(int) Math.min(ok.length - 1, ok.length * 0.99)] / 1e6, ok[ok.length - 1] / 1e6);
+    }
+}
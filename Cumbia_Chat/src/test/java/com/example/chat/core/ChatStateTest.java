@@ -0,0 +1,219 @@
+package com.example.chat.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ChatState bajo escrituras concurrentes: cada prueba usa su propia instancia.
+ */
+class ChatStateTest {
+
+    private static final int THREADS = 16;
+
+    @Test
+    void concurrentCreateCreatesEachGroupOnce() throws Exception {
+        ChatState state = new ChatState();
+        int groups = 200;
+        AtomicInteger created = new AtomicInteger();
+
+        runConcurrently(THREADS, t -> {
+            for (int g = 0; g < groups; g++) {
+                if (state.createGroup("g" + g)) created.incrementAndGet();
+            }
+        });
+
+        assertEquals(groups, created.get());
+        assertEquals(groups, state.groups().size());
+        for (int g = 0; g < groups; g++) assertTrue(state.groupExists("g" + g));
+    }
+
+    @Test
+    void noMembershipIsLost() throws Exception {
+        ChatState state = new ChatState();
+        int groups = 10;
+        int perThread = 50;
+        // Los grupos se crean mientras otros ya se quieren unir: join falla y se reintenta
+        runConcurrently(THREADS, t -> {
+            for (int i = 0; i < perThread; i++) {
+                String user = "u" + t + "-" + i;
+                for (int g = 0; g < groups; g++) {
+                    String group = "g" + ((g + t) % groups);
+                    state.createGroup(group);
+                    assertTrue(state.join(group, user));
+                }
+            }
+        });
+
+        for (int g = 0; g < groups; g++) {
+            assertEquals(THREADS * perThread, state.memberCount("g" + g));
+            assertEquals(THREADS * perThread, state.members("g" + g).size());
+        }
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < perThread; i++) {
+                assertEquals(groups, state.groupsOf("u" + t + "-" + i).size());
+            }
+        }
+    }
+
+    @Test
+    void concurrentJoinLeaveKeepsIndexAndMembersInSync() throws Exception {
+        ChatState state = new ChatState();
+        int groups = 8;
+        int users = 40;
+        for (int g = 0; g < groups; g++) state.createGroup("g" + g);
+
+        // Los avisos pueden llegar desordenados, pero por cada par joined y left se compensan
+        Map<String, LongAdder> balance = new ConcurrentHashMap<>();
+        state.addListener(new ChatState.Listener() {
+            @Override public void joined(String groupName, String username) {
+                balance.computeIfAbsent(groupName + "/" + username, k -> new LongAdder()).increment();
+            }
+            @Override public void left(String groupName, String username) {
+                balance.computeIfAbsent(groupName + "/" + username, k -> new LongAdder()).decrement();
+            }
+        });
+
+        // Usuarios que solo se unen, mezclados con los que entran y salen
+        int stable = 10;
+        runConcurrently(THREADS, t -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 20_000; i++) {
+                String group = "g" + random.nextInt(groups);
+                int u = random.nextInt(users);
+                if (u < stable) {
+                    state.join(group, "s" + u);
+                    continue;
+                }
+                String user = "c" + u;
+                switch (random.nextInt(4)) {
+                    case 0, 1 -> state.join(group, user);
+                    case 2 -> state.leave(group, user);
+                    default -> state.leaveAll(user);
+                }
+            }
+            for (int u = 0; u < stable; u++) {
+                for (int g = 0; g < groups; g++) state.join("g" + g, "s" + u);
+            }
+        });
+
+        for (int u = 0; u < users; u++) {
+            String user = (u < stable ? "s" : "c") + u;
+            Set<String> joined = new HashSet<>();
+            for (int g = 0; g < groups; g++) {
+                String group = "g" + g;
+                boolean member = state.isMember(group, user);
+                assertEquals(member, state.members(group).contains(user), group + "/" + user);
+                LongAdder events = balance.get(group + "/" + user);
+                assertEquals(member ? 1 : 0, events == null ? 0 : events.sum(), "avisos de " + group + "/" + user);
+                if (member) joined.add(group);
+            }
+            assertEquals(joined, state.groupsOf(user), "índice de " + user);
+            if (u < stable) assertEquals(groups, joined.size());
+        }
+    }
+
+    @Test
+    void snapshotsOnlyMoveForward() throws Exception {
+        ChatState state = new ChatState();
+        int writers = THREADS / 2;
+        int perWriter = 2000;
+        // Cuántos usuarios dejó conectados cada escritor (p<w>-0, p<w>-1...); los c<w> entran y salen
+        AtomicIntegerArray permanent = new AtomicIntegerArray(writers);
+        AtomicInteger writing = new AtomicInteger(writers);
+
+        runConcurrently(THREADS, t -> {
+            if (t < writers) {
+                for (int i = 0; i < perWriter; i++) {
+                    state.online("c" + t, ChatState.Frontend.TCP);
+                    assertTrue(state.createGroup("p" + t + "-" + i));
+                    assertTrue(state.online("p" + t + "-" + i, t % 2 == 0 ? ChatState.Frontend.TCP : ChatState.Frontend.ICE));
+                    permanent.set(t, i + 1);
+                    state.offline("c" + t, ChatState.Frontend.TCP);
+                }
+                writing.decrementAndGet();
+                return;
+            }
+            long lastUsers = 0;
+            long lastGroups = 0;
+            while (writing.get() > 0) {
+                int[] before = new int[writers];
+                for (int w = 0; w < writers; w++) before[w] = permanent.get(w);
+                long usersVersion = state.usersVersion();
+                long groupsVersion = state.groupsVersion();
+                Set<String> users = state.users();
+                Set<String> groups = state.groups();
+
+                assertTrue(usersVersion >= lastUsers && groupsVersion >= lastGroups, "una versión bajó");
+                lastUsers = usersVersion;
+                lastGroups = groupsVersion;
+                for (int w = 0; w < writers; w++) {
+                    if (before[w] == 0) continue;
+                    String name = "p" + w + "-" + (before[w] - 1);
+                    assertTrue(users.contains(name), "a users() le falta " + name);
+                    assertTrue(groups.contains(name), "a groups() le falta " + name);
+                }
+            }
+        });
+
+        assertEquals(writers * perWriter, state.users().size());
+        assertEquals(writers * perWriter, state.groups().size());
+        for (int w = 0; w < writers; w++) assertFalse(state.isOnline("c" + w));
+    }
+
+    @Test
+    void userStaysOnlineUntilLastFrontendLeaves() {
+        ChatState state = new ChatState();
+        assertTrue(state.online("ana", ChatState.Frontend.TCP));
+        assertFalse(state.online("ana", ChatState.Frontend.ICE));
+        assertFalse(state.offline("ana", ChatState.Frontend.TCP));
+        assertTrue(state.isOnline("ana"));
+        assertTrue(state.offline("ana", ChatState.Frontend.ICE));
+        assertFalse(state.isOnline("ana"));
+        assertNull(state.members("nadie"));
+    }
+
+    @FunctionalInterface
+    interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    // Arranca todos juntos y propaga el primer error (incluidos los assert)
+    static void runConcurrently(int threads, Worker worker) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CyclicBarrier start = new CyclicBarrier(threads);
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                tasks.add(pool.submit(() -> {
+                    start.await();
+                    worker.run(id);
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) task.get(120, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.chat.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    @Test
+    void burstThenReject() {
+        RateLimiter limit = new RateLimiter(1, 3);
+        for (int i = 0; i < 3; i++) assertTrue(limit.tryAcquire("ana"));
+        assertFalse(limit.tryAcquire("ana"));
+        assertTrue(limit.tryAcquire("beto"));
+        assertTrue(limit.rejected() >= 1);
+    }
+
+    @Test
+    void hotKeysStayLimitedWhileIdleOnesArePurged() throws Exception {
+        // 1000/s: las claves nuevas quedan con el balde lleno al milisegundo y se pueden barrer
+        RateLimiter limit = new RateLimiter(1000, 5);
+        int hot = 8;
+        int churn = 60_000;
+        AtomicIntegerArray admitted = new AtomicIntegerArray(hot);
+
+        // Mitad de los hilos golpea las mismas claves, la otra mitad mete claves nuevas
+        // que disparan barridos mientras tanto
+        long start = System.nanoTime();
+        ChatStateTest.runConcurrently(8, t -> {
+            for (int i = 0; i < churn; i++) {
+                if (t % 2 == 0) {
+                    int k = i % hot;
+                    if (limit.tryAcquire("h" + k)) admitted.incrementAndGet(k);
+                } else {
+                    limit.tryAcquire("c" + t + "-" + i);
+                }
+            }
+        });
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + 1;
+
+        for (int k = 0; k < hot; k++) {
+            assertTrue(admitted.get(k) <= 5 + elapsedMillis, "h" + k + " entró " + admitted.get(k)
+                    + " veces en " + elapsedMillis + "ms");
+        }
+        assertTrue(limit.keys() < 4 * churn, "no se barrió nada: " + limit.keys());
+    }
+}
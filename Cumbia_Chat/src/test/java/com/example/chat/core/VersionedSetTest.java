@@ -0,0 +1,96 @@
+package com.example.chat.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VersionedSetTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int PER_WRITER = 5000;
+
+    @Test
+    void sameSnapshotWhileNothingChanges() {
+        VersionedSet set = new VersionedSet(ConcurrentHashMap.newKeySet());
+        set.add("ana");
+        Set<String> first = set.snapshot();
+        assertSame(first, set.snapshot());
+
+        assertFalse(set.add("ana"));
+        assertFalse(set.remove("beto"));
+        assertSame(first, set.snapshot());
+
+        set.add("beto");
+        Set<String> second = set.snapshot();
+        assertNotSame(first, second);
+        assertEquals(Set.of("ana", "beto"), second);
+        assertEquals(Set.of("ana"), first);
+    }
+
+    @Test
+    void versionsOnlyIncreaseAndSnapshotsKeepEveryFinishedWrite() throws Exception {
+        VersionedSet set = new VersionedSet(ConcurrentHashMap.newKeySet());
+        // Cuántos add terminó cada escritor; cada uno agrega w<k>-0, w<k>-1...
+        AtomicIntegerArray finished = new AtomicIntegerArray(WRITERS);
+        CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        ExecutorService pool = Executors.newFixedThreadPool(WRITERS + READERS);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                int k = w;
+                tasks.add(pool.submit(() -> {
+                    for (int i = 0; i < PER_WRITER; i++) {
+                        assertTrue(set.add("w" + k + "-" + i));
+                        finished.set(k, i + 1);
+                    }
+                    writersDone.countDown();
+                }));
+            }
+            for (int r = 0; r < READERS; r++) {
+                tasks.add(pool.submit(() -> {
+                    long last = 0;
+                    while (writersDone.getCount() > 0) {
+                        int[] before = new int[WRITERS];
+                        for (int k = 0; k < WRITERS; k++) before[k] = finished.get(k);
+                        long version = set.version();
+                        Set<String> snapshot = set.snapshot();
+
+                        assertTrue(version >= last, "la versión bajó de " + last + " a " + version);
+                        last = version;
+                        int total = 0;
+                        for (int k = 0; k < WRITERS; k++) {
+                            total += before[k];
+                            if (before[k] > 0) {
+                                String name = "w" + k + "-" + (before[k] - 1);
+                                assertTrue(snapshot.contains(name), "al snapshot le falta " + name);
+                            }
+                        }
+                        assertTrue(snapshot.size() >= total);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) task.get(60, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(WRITERS * PER_WRITER, set.version());
+        assertEquals(WRITERS * PER_WRITER, set.snapshot().size());
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.chat.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OfflineInboxTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void namesThatUsedToCollideKeepTheirOwnBox() throws Exception {
+        OfflineInbox inbox = new OfflineInbox(dir);
+        // Antes los tres iban a a_b.box
+        for (String user : List.of("a b", "a/b", "a_b")) {
+            inbox.store(user, message(user, "para " + user));
+        }
+        for (String user : List.of("a b", "a/b", "a_b")) {
+            OfflineInbox.Batch batch = inbox.read(user, 10);
+            assertEquals(1, batch.messages().size(), user);
+            assertEquals("para " + user, batch.messages().get(0).content());
+        }
+    }
+
+    @Test
+    void readInBatchesAndDeleteAfterTheLastAck() throws Exception {
+        OfflineInbox inbox = new OfflineInbox(dir);
+        for (int i = 0; i < 10; i++) inbox.store("ana", message("beto", "m" + i));
+
+        List<String> got = new ArrayList<>();
+        OfflineInbox.Batch batch = inbox.read("ana", 4);
+        // Sin ack la tanda sigue pendiente
+        assertEquals(batch.messages(), inbox.read("ana", 4).messages());
+        while (!batch.isEmpty()) {
+            for (OfflineInbox.InboxMessage m : batch.messages()) got.add(m.content());
+            inbox.ack("ana", batch);
+            // Lo que llega en medio se lee en la tanda siguiente
+            if (got.size() == 4) inbox.store("ana", message("beto", "m10"));
+            batch = inbox.read("ana", 4);
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i <= 10; i++) expected.add("m" + i);
+        assertEquals(expected, got);
+        assertEquals(0, inbox.pending("ana"));
+        try (var files = Files.list(dir)) {
+            assertFalse(files.findAny().isPresent(), "el buzón vacío se borra");
+        }
+    }
+
+    @Test
+    void oldBoxFileIsPickedUp() throws Exception {
+        OfflineInbox before = new OfflineInbox(dir);
+        before.store("ana", message("beto", "hola"));
+        Path current;
+        try (var files = Files.list(dir)) {
+            current = files.findFirst().orElseThrow();
+        }
+        // Como lo dejaba la versión anterior
+        Files.move(current, dir.resolve("ana.box"));
+
+        OfflineInbox after = new OfflineInbox(dir);
+        assertEquals(1, after.pending("ana"));
+        assertEquals("hola", after.read("ana", 10).messages().get(0).content());
+        assertTrue(Files.notExists(dir.resolve("ana.box")));
+    }
+
+    private static OfflineInbox.InboxMessage message(String sender, String content) {
+        return new OfflineInbox.InboxMessage(sender, sender, content, "TEXT", "2026-01-01");
+    }
+}
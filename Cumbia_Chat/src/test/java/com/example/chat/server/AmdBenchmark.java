@@ -0,0 +1,100 @@
+package com.example.chat.server;
+
+import com.zeroc.Ice.Properties;
+import com.zeroc.Ice.Util;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * p99 de getConnectedUsers mientras varios clientes suben audios sin parar: despacho
+ * síncrono de antes (el audio se escribe en el hilo de despacho) contra AMD (el hilo de
+ * despacho solo encola en audioIo). No es un test: se corre a mano, desde un directorio
+ * descartable porque escribe en audios/, con
+ *
+ *   java -cp <classpath de test> com.example.chat.server.AmdBenchmark
+ *
+ * Cada combinación se mide con los dos despachos del servidor: el pool de Ice, simulado con
+ * un pool fijo de -Dbench.dispatchThreads hilos (1 por defecto, como Ice.ThreadPool.Server.Size),
+ * y CumbiaChat.VirtualThreads=1, con el mismo dispatcher que instala Server (un hilo virtual
+ * por petición) y el ChatServiceI de ese modo. Cada cliente de la tormenta espera la
+ * respuesta antes de mandar el siguiente audio, como un proxy twoway.
+ */
+public class AmdBenchmark {
+
+    private static final int DISPATCH_THREADS = Integer.getInteger("bench.dispatchThreads", 1);
+    private static final int UPLOADERS = Integer.getInteger("bench.uploaders", 8);
+    private static final int AUDIO_BYTES = Integer.getInteger("bench.audioBytes", 256 * 1024);
+    private static final int SAMPLES = Integer.getInteger("bench.samples", 2000);
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        // ChatServiceI loguea cada audio; acá solo interesa el resultado
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        out.println(DISPATCH_THREADS + " hilos de despacho en el pool, " + UPLOADERS + " clientes subiendo audios de "
+                + AUDIO_BYTES / 1024 + " KB, " + SAMPLES + " muestras");
+        out.printf("%8s %10s %12s %12s %12s%n", "modo", "despacho", "p50 us", "p99 us", "max us");
+        for (boolean virtual : new boolean[] {false, true}) {
+            Properties props = Util.createProperties();
+            if (virtual) props.setProperty("CumbiaChat.VirtualThreads", "1");
+            ChatServiceI svc = new ChatServiceI(props);
+            try {
+                measure(out, "antes", svc, true, virtual);
+                measure(out, "después", svc, false, virtual);
+            } finally {
+                svc.shutdown();
+            }
+        }
+    }
+
+    private static void measure(PrintStream out, String mode, ChatServiceI svc, boolean blocking, boolean virtual)
+            throws Exception {
+        ExecutorService dispatch = virtual ? Server.newVirtualDispatcher() : Executors.newFixedThreadPool(DISPATCH_THREADS);
+        AtomicBoolean running = new AtomicBoolean(true);
+        byte[] audio = new byte[AUDIO_BYTES];
+        Thread[] storm = new Thread[UPLOADERS];
+        for (int i = 0; i < storm.length; i++) {
+            String sender = "bench" + i;
+            storm[i] = Thread.ofPlatform().daemon().start(() -> {
+                while (running.get()) {
+                    // Antes el cuerpo de sendAudio ocupaba el hilo de despacho hasta terminar
+                    CompletableFuture<Void> reply = CompletableFuture.supplyAsync(() -> {
+                        var stage = svc.sendAudioAsync(audio, sender, "bench", ".wav", null).toCompletableFuture();
+                        if (blocking) stage.join();
+                        return stage;
+                    }, dispatch).thenCompose(stage -> stage);
+                    reply.join();
+                }
+            });
+        }
+
+        long[] latencies = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            long t0 = System.nanoTime();
+            CompletableFuture.supplyAsync(() -> svc.getConnectedUsersAsync(null), dispatch)
+                    .thenCompose(stage -> stage).join();
+            latencies[i] = System.nanoTime() - t0;
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        running.set(false);
+        for (Thread t : storm) t.join();
+        dispatch.shutdown();
+
+        Arrays.sort(latencies);
+        out.printf("%8s %10s %12.1f %12.1f %12.1f%n", mode, virtual ? "virtual" : "pool", micros(latencies, 0.50), micros(latencies, 0.99),
+                latencies[latencies.length - 1] / 1000.0);
+    }
+
+    private static double micros(long[] sorted, double q) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(q * sorted.length))] / 1000.0;
+    }
+}
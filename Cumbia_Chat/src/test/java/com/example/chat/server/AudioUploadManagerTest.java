@@ -0,0 +1,34 @@
+package com.example.chat.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AudioUploadManagerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void failedStoreLeavesNoPartBehind() throws Exception {
+        AudioUploadManager uploads = new AudioUploadManager(dir, 1024 * 1024, 60);
+        // Un tab en el nombre hace fallar AudioStore.storeFile
+        String id = uploads.begin("a\tb", "general", ".wav");
+        assertEquals(1, uploads.append(id, 0, new byte[] {1, 2, 3}));
+
+        assertThrows(IOException.class, () -> uploads.commit(id));
+
+        try (var parts = Files.list(dir.resolve(".uploads"))) {
+            assertEquals(0, parts.count(), "quedó el .part");
+        }
+        assertNull(uploads.commit(id));
+        assertEquals(-1, uploads.append(id, 1, new byte[] {4}));
+    }
+}
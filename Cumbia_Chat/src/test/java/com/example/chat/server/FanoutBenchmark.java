@@ -0,0 +1,106 @@
+package com.example.chat.server;
+
+import com.example.chat.generated.CumbiaChat.ChatCallbackPrx;
+import com.example.chat.generated.CumbiaChat.Message;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Mensajes por segundo de un grupo de 10, 1k y 10k miembros: el loop serial de antes
+ * (receiveMessage uno por uno en el hilo de despacho) contra MessageFanout.
+ * No es un test: se corre a mano con
+ *
+ *   java -cp <classpath de test> com.example.chat.server.FanoutBenchmark
+ *
+ * Los callbacks son proxies falsos que simulan el costo de transporte de cada llamada
+ * (-Dbench.latencyMicros, 50 por defecto): la llamada síncrona bloquea ese tiempo y la
+ * AMI devuelve un future que se completa después de ese tiempo en otro hilo.
+ */
+public class FanoutBenchmark {
+
+    private static final long LATENCY_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("bench.latencyMicros", 50));
+    // Entregas por medición, repartidas en tantos mensajes como haga falta
+    private static final int DELIVERIES = 200_000;
+
+    private static final ScheduledExecutorService network = Executors.newScheduledThreadPool(4, r -> {
+        Thread t = new Thread(r, "bench-network");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final LongAdder received = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.println("latencia simulada " + LATENCY_NANOS / 1000 + "us, " + threads + " hilos de fan-out");
+        System.out.printf("%8s %16s %16s %20s%n", "miembros", "antes msg/s", "después msg/s", "retorno publish us");
+
+        for (int members : new int[] {10, 1_000, 10_000}) {
+            int messages = Math.max(3, DELIVERIES / members);
+            // Colas con lugar para todo: se mide el ritmo de entrega, sin descartes
+            ClientSession[] sessions = new ClientSession[members];
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i] = new ClientSession("u" + i, fakeCallback(), null,
+                        new OutboundQueue(messages + 1, Long.MAX_VALUE, OutboundQueue.Policy.parse("drop-oldest")));
+            }
+            Message msg = new Message("bench", "hola", "TEXT", "");
+
+            // Antes: el hilo de despacho recorre el grupo con llamadas síncronas
+            int serialMessages = Math.max(1, messages / 10);
+            long t0 = System.nanoTime();
+            for (int m = 0; m < serialMessages; m++) {
+                for (ClientSession s : sessions) s.getCallback().receiveMessage(msg, "g");
+            }
+            double before = serialMessages / seconds(t0);
+
+            // Después: publishToGroup retorna enseguida y el pool entrega
+            MessageFanout fanout = new MessageFanout(threads, 10_000, u -> null, s -> {}, null);
+            received.reset();
+            long expected = (long) messages * members;
+            long publishNanos = 0;
+            t0 = System.nanoTime();
+            for (int m = 0; m < messages; m++) {
+                long p = System.nanoTime();
+                fanout.publishToGroup(msg, "g", "bench", sessions);
+                publishNanos += System.nanoTime() - p;
+            }
+            while (received.sum() < expected) LockSupport.parkNanos(100_000);
+            double after = messages / seconds(t0);
+            fanout.shutdown();
+
+            System.out.printf("%8d %16.1f %16.1f %20.1f%n", members, before, after, publishNanos / 1000.0 / messages);
+        }
+    }
+
+    private static double seconds(long since) {
+        return (System.nanoTime() - since) / 1e9;
+    }
+
+    private static ChatCallbackPrx fakeCallback() {
+        return (ChatCallbackPrx) Proxy.newProxyInstance(ChatCallbackPrx.class.getClassLoader(),
+                new Class<?>[] {ChatCallbackPrx.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "receiveMessage" -> {
+                        LockSupport.parkNanos(LATENCY_NANOS);
+                        received.increment();
+                        yield null;
+                    }
+                    case "receiveMessageAsync" -> {
+                        CompletableFuture<Void> f = new CompletableFuture<>();
+                        network.schedule(() -> {
+                            received.increment();
+                            f.complete(null);
+                        }, LATENCY_NANOS, TimeUnit.NANOSECONDS);
+                        yield f;
+                    }
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "fakeCallback";
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.chat.server;
+
+import com.example.chat.generated.CumbiaChat.ChatCallbackPrx;
+import com.example.chat.generated.CumbiaChat.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageFanoutTest {
+
+    private static final int MESSAGES = 2000;
+
+    private final ScheduledExecutorService network = Executors.newScheduledThreadPool(2);
+    // username -> contenidos recibidos, en el orden en que llegaron
+    private final Map<String, List<String>> received = new ConcurrentHashMap<>();
+    private final LongAdder deliveries = new LongAdder();
+    private PrintStream stderr;
+
+    @BeforeEach
+    void quiet() {
+        stderr = System.err;
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @AfterEach
+    void stop() {
+        network.shutdownNow();
+        System.setErr(stderr);
+    }
+
+    @Test
+    void eachRecipientGetsTheSenderMessagesInOrder() throws Exception {
+        int members = 300;
+        ClientSession[] sessions = new ClientSession[members];
+        for (int i = 0; i < members; i++) {
+            sessions[i] = new ClientSession("u" + i, callback("u" + i), null,
+                    new OutboundQueue(MESSAGES + 1, Long.MAX_VALUE, OutboundQueue.Policy.parse("drop-oldest")));
+        }
+        // Colas mínimas: los carriles se llenan y quien publica tiene que esperar lugar
+        MessageFanout fanout = new MessageFanout(4, 16, u -> u.equals("u0") ? sessions[0] : null, s -> {}, null);
+        try {
+            for (int m = 0; m < MESSAGES; m++) {
+                fanout.publishToGroup(new Message("u0", Integer.toString(m), "TEXT", ""), "g", "u0", sessions);
+            }
+            long expected = (long) MESSAGES * (members - 1);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (deliveries.sum() < expected && System.nanoTime() < deadline) Thread.sleep(10);
+            assertEquals(expected, deliveries.sum());
+        } finally {
+            fanout.shutdown();
+        }
+
+        assertNull(received.get("u0"), "el remitente no recibe su propio mensaje");
+        for (int i = 1; i < members; i++) {
+            List<String> got = received.get("u" + i);
+            assertEquals(MESSAGES, got.size(), "u" + i);
+            for (int m = 0; m < MESSAGES; m++) {
+                assertEquals(Integer.toString(m), got.get(m), "orden de u" + i);
+            }
+        }
+    }
+
+    @Test
+    void groupAndPrivateChatsEachStayInOrder() throws Exception {
+        ClientSession ana = new ClientSession("ana", callback("ana"), null,
+                new OutboundQueue(MESSAGES + 1, Long.MAX_VALUE, OutboundQueue.Policy.parse("drop-oldest")));
+        MessageFanout fanout = new MessageFanout(4, 16, u -> null, s -> {}, null);
+        try {
+            for (int m = 0; m < MESSAGES; m++) {
+                Message msg = new Message("beto", Integer.toString(m), "TEXT", "");
+                if (m % 2 == 0) fanout.publishToGroup(msg, "g", "beto", new ClientSession[] {ana});
+                else fanout.publishPrivate(msg, "beto", ana);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (deliveries.sum() < MESSAGES && System.nanoTime() < deadline) Thread.sleep(10);
+        } finally {
+            fanout.shutdown();
+        }
+        // Solo se pide que cada chat llegue en orden: los privados salen en el hilo que publica
+        List<Integer> group = new ArrayList<>();
+        List<Integer> direct = new ArrayList<>();
+        for (String content : received.get("ana")) {
+            int m = Integer.parseInt(content);
+            (m % 2 == 0 ? group : direct).add(m);
+        }
+        assertEquals(MESSAGES / 2, group.size());
+        assertEquals(MESSAGES / 2, direct.size());
+        for (int i = 1; i < group.size(); i++) assertTrue(group.get(i - 1) < group.get(i), "orden del grupo");
+        for (int i = 1; i < direct.size(); i++) assertTrue(direct.get(i - 1) < direct.get(i), "orden del privado");
+    }
+
+    // Callback falso: a veces completa en el acto (oneway) y a veces más tarde en otro hilo,
+    // así la cola de la sesión se sigue desde el callback como con una red real
+    private ChatCallbackPrx callback(String username) {
+        return (ChatCallbackPrx) Proxy.newProxyInstance(ChatCallbackPrx.class.getClassLoader(),
+                new Class<?>[] {ChatCallbackPrx.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "receiveMessageAsync" -> {
+                        received.computeIfAbsent(username, u -> new ArrayList<>()).add(((Message) args[0]).content);
+                        deliveries.increment();
+                        if (ThreadLocalRandom.current().nextInt(4) != 0) yield CompletableFuture.completedFuture(null);
+                        CompletableFuture<Void> f = new CompletableFuture<>();
+                        network.schedule(() -> f.complete(null), 50, TimeUnit.MICROSECONDS);
+                        yield f;
+                    }
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "callback(" + username + ")";
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
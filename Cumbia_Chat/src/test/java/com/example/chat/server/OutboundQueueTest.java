@@ -0,0 +1,38 @@
+package com.example.chat.server;
+
+import com.example.chat.generated.CumbiaChat.Message;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class OutboundQueueTest {
+
+    @Test
+    void coalesceLeavesAReadableTextNoticeAndTheLastMessage() {
+        OutboundQueue queue = new OutboundQueue(4, Long.MAX_VALUE, OutboundQueue.Policy.COALESCE);
+        assertEquals(OutboundQueue.Offer.SEND, queue.offer(item("m0")));
+        // Dos compactaciones: la segunda suma los omitidos de la primera
+        for (int i = 1; i <= 9; i++) queue.offer(item("m" + i));
+
+        List<OutboundQueue.Item> pending = new ArrayList<>();
+        for (OutboundQueue.Item item; (item = queue.next()) != null; ) pending.add(item);
+
+        OutboundQueue.Item notice = pending.get(0);
+        assertEquals("TEXT", notice.msg().type);
+        assertEquals(OutboundQueue.NOTICE_SENDER, notice.msg().sender);
+        assertEquals("g", notice.chatName());
+        int omitted = notice.omitted();
+        assertEquals(omitted + " mensaje(s) omitido(s) por conexión lenta", notice.msg().content);
+        // Todo lo ofrecido después de m0 es omitido o sigue en la cola
+        assertEquals(9, omitted + pending.size() - 1);
+        assertEquals("m9", pending.get(pending.size() - 1).msg().content);
+        assertEquals(omitted, queue.drops());
+    }
+
+    private static OutboundQueue.Item item(String content) {
+        return OutboundQueue.Item.of(new Message("ana", content, "TEXT", ""), "g");
+    }
+}